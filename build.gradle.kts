@@ -1,6 +1,7 @@
 plugins {
     java
     application
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = project.property("project_group") as String
@@ -16,6 +17,14 @@ repositories {
     mavenCentral()
 }
 
+val hostNatives = System.getProperty("os.name").lowercase().let { os ->
+    when {
+        os.contains("win") -> "natives-windows"
+        os.contains("mac") -> if (System.getProperty("os.arch") == "aarch64") "natives-macos-arm64" else "natives-macos"
+        else -> "natives-linux"
+    }
+}
+
 dependencies {
     implementation(platform("org.lwjgl:lwjgl-bom:${project.property("lwjgl_version")}"))
     implementation("com.moandjiezana.toml:toml4j:${project.property("toml_version")}")
@@ -32,6 +41,12 @@ dependencies {
         implementation("org.lwjgl:lwjgl-$trimmedModule")
         runtimeOnly("org.lwjgl:lwjgl-$trimmedModule::${project.property("lwjgl_natives")}")
     }
+
+    // Benchmarks run on whatever machine builds them, so they also get that machine's natives
+    "jmhRuntimeOnly"("org.lwjgl:lwjgl::$hostNatives")
+    lwjglModules.forEach { module ->
+        "jmhRuntimeOnly"("org.lwjgl:lwjgl-${module.trim()}::$hostNatives")
+    }
 }
 
 application {
@@ -88,6 +103,74 @@ tasks.named<JavaExec>("run") {
     )
 }
 
+// Bakes textures into the cache ahead of time so the first launch doesn't decode them either.
+// -Ptextures.source=<dir> picks the images, -Ptextures.compression=BLOCK stores BC1/BC3
+tasks.register<JavaExec>("bakeTextures") {
+    group = "build"
+    description = "Bake textures into the runtime texture cache"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("${project.property("project_group")}.rendering.TextureCache")
+    args = listOf(
+        "cache/textures",
+        (project.findProperty("textures.compression") ?: "NONE") as String,
+        (project.findProperty("textures.source") ?: "assets/textures") as String
+    )
+}
+
+// Imports models with Assimp into the runtime mesh cache ahead of time.
+// -Pmeshes.source=<dir> picks the models
+tasks.register<JavaExec>("bakeMeshes") {
+    group = "build"
+    description = "Bake models into the runtime mesh cache"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("${project.property("project_group")}.rendering.MeshCache")
+    args = listOf(
+        "cache/meshes",
+        (project.findProperty("meshes.source") ?: "assets/models") as String
+    )
+}
+
+// Packs assets into one memory mapped archive that Main mounts at startup, so the game doesn't
+// open every small file on its own. Classpath resources keep their resource names, files under
+// assets/ are keyed by the path they are loaded with. -Passets.archive=<file> picks the output
+tasks.register<JavaExec>("packAssets") {
+    group = "build"
+    description = "Pack resources and assets into the runtime asset archive"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("${project.property("project_group")}.core.AssetArchive")
+    args = listOf(
+        (project.findProperty("assets.archive") ?: "assets.pak") as String,
+        "src/main/resources",
+        "assets=assets"
+    )
+}
+
+// Benchmarks, run with ./gradlew jmh. Results land in build/reports/jmh/results.json so runs
+// can be diffed between commits. Pass -Pjmh.includes=<regex> to run a subset
+jmh {
+    jmhVersion.set(project.property("jmh_version") as String)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    jvmArgs.set(listOf("-Xmx1G", "-XX:+UseG1GC"))
+    if (project.hasProperty("jmh.includes")) {
+        includes.set(listOf(project.property("jmh.includes") as String))
+    }
+}
+
+// Fails when the Shader uniform path allocates, which JMH's gc profiler only reports.
+// Needs a display for the GL context like the benchmarks do
+tasks.register<JavaExec>("checkAllocations") {
+    group = "verification"
+    description = "Check that uniform uploads allocate nothing"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("${project.property("project_group")}.rendering.ShaderAllocationCheck")
+    jvmArgs = listOf("-Xmx1G", "-XX:+UseG1GC")
+}
+
 // JAR configuration
 tasks.jar {
     manifest {
@@ -0,0 +1,116 @@
+package net.james.game.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Reads every one of a few thousand small assets, half of them text that compresses well and
+// half random bytes that get stored, from loose files and from an archive
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AssetArchiveBenchmark
+{
+    @Param({"2000"})
+    public int assets;
+
+    @Param({"2048"})
+    public int assetSize;
+
+    private Path directory;
+    private String[] names;
+    private AssetArchive archive;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        this.directory = Files.createTempDirectory("assets");
+        this.names = new String[this.assets];
+
+        Random random = new Random(1234);
+        Map<String, Path> files = new TreeMap<>();
+        for (int i = 0; i < this.assets; i++)
+        {
+            byte[] bytes = new byte[this.assetSize];
+            if (i % 2 == 0)
+            {
+                random.nextBytes(bytes);
+            }
+            else
+            {
+                for (int b = 0; b < bytes.length; b++)
+                {
+                    bytes[b] = (byte) ("uniform vec4 color;\n".charAt(b % 20));
+                }
+            }
+
+            this.names[i] = "assets/" + (i % 16) + "/" + i + ".bin";
+            Path file = this.directory.resolve(this.names[i]);
+            Files.createDirectories(file.getParent());
+            Files.write(file, bytes);
+            files.put(this.names[i], file);
+        }
+
+        Path archive = this.directory.resolve("assets.pak");
+        AssetArchive.build(archive, files);
+        this.archive = AssetArchive.open(archive);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        this.archive = null;
+        try (Stream<Path> files = Files.walk(this.directory))
+        {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public long looseFiles() throws IOException
+    {
+        long sum = 0;
+        for (String name : this.names)
+        {
+            byte[] bytes = Files.readAllBytes(this.directory.resolve(name));
+            sum += bytes[bytes.length - 1];
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public long archive()
+    {
+        long sum = 0;
+        for (String name : this.names)
+        {
+            ByteBuffer data = this.archive.get(name);
+            sum += data.get(data.limit() - 1);
+            this.archive.release(data);
+        }
+
+        return sum;
+    }
+}
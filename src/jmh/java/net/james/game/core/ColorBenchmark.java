@@ -0,0 +1,40 @@
+package net.james.game.core;
+
+import org.joml.Vector4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ColorBenchmark
+{
+    // Not final so the JIT can't fold the parse away
+    private String rgb = "#ff8000";
+    private String rgba = "ff800080";
+    private Color color = new Color(255, 128, 0, 128);
+
+    @Benchmark
+    public Color fromHexRgb()
+    {
+        return Color.fromHex(this.rgb);
+    }
+
+    @Benchmark
+    public Color fromHexRgba()
+    {
+        return Color.fromHex(this.rgba);
+    }
+
+    @Benchmark
+    public Vector4f toVec4()
+    {
+        return this.color.toVec4();
+    }
+}
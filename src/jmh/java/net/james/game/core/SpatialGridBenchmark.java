@@ -0,0 +1,93 @@
+package net.james.game.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A world about 50 screens in area with 16 to 64 pixel objects, queried with one screen
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpatialGridBenchmark
+{
+    private static final float SCREEN_WIDTH = 1920;
+    private static final float SCREEN_HEIGHT = 1080;
+    private static final float WORLD_WIDTH = SCREEN_WIDTH * 7;
+    private static final float WORLD_HEIGHT = SCREEN_HEIGHT * 7;
+
+    @Param({"100000"})
+    public int objects;
+
+    @Param({"64", "256"})
+    public float cellSize;
+
+    private SpatialGrid<Integer> grid;
+    private int[] handles;
+    private float[] x, y, size;
+    private final List<Integer> visible = new ArrayList<>();
+    private final Random random = new Random(1234);
+    private float cameraX, cameraY;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.grid = new SpatialGrid<>(this.cellSize);
+        this.handles = new int[this.objects];
+        this.x = new float[this.objects];
+        this.y = new float[this.objects];
+        this.size = new float[this.objects];
+
+        for (int i = 0; i < this.objects; i++)
+        {
+            this.x[i] = this.random.nextFloat() * WORLD_WIDTH;
+            this.y[i] = this.random.nextFloat() * WORLD_HEIGHT;
+            this.size[i] = 16 + this.random.nextFloat() * 48;
+            this.handles[i] = this.grid.insert(i, this.x[i], this.y[i], this.size[i], this.size[i]);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void moveCamera()
+    {
+        this.cameraX = this.random.nextFloat() * (WORLD_WIDTH - SCREEN_WIDTH);
+        this.cameraY = this.random.nextFloat() * (WORLD_HEIGHT - SCREEN_HEIGHT);
+    }
+
+    @Benchmark
+    public int query()
+    {
+        this.visible.clear();
+        return this.grid.query(this.cameraX, this.cameraY, SCREEN_WIDTH, SCREEN_HEIGHT, this.visible);
+    }
+
+    // A tenth of the objects move a few pixels, most of them stay in their cells
+    @Benchmark
+    public int move()
+    {
+        int start = this.random.nextInt(this.objects);
+        for (int n = 0; n < this.objects / 10; n++)
+        {
+            int i = (start + n * 10) % this.objects;
+            this.x[i] += 2;
+            if (this.x[i] > WORLD_WIDTH)
+            {
+                this.x[i] = 0;
+            }
+
+            this.grid.move(this.handles[i], this.x[i], this.y[i], this.size[i], this.size[i]);
+        }
+
+        return this.grid.size();
+    }
+}
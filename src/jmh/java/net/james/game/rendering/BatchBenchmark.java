@@ -0,0 +1,91 @@
+package net.james.game.rendering;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The CPU half of Renderer2d without a context: queueing, sorting and building the vertex data
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchBenchmark
+{
+    @Param({"1000", "10000"})
+    public int sprites;
+
+    @Param({"1", "4"})
+    public int layers;
+
+    private RenderQueue queue;
+    private SpriteBatch batch;
+    private long[] keys;
+    private float[] positions;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.queue = new RenderQueue(this.sprites);
+        this.batch = new SpriteBatch(this.sprites);
+
+        Random random = new Random(1234);
+        this.keys = new long[this.sprites];
+        this.positions = new float[this.sprites * 2];
+        for (int i = 0; i < this.sprites; i++)
+        {
+            this.keys[i] = RenderQueue.key(random.nextInt(this.layers), i);
+            this.positions[i * 2] = random.nextFloat() * 1920;
+            this.positions[i * 2 + 1] = random.nextFloat() * 1080;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.batch.destroy();
+    }
+
+    @Benchmark
+    public int queueAndSort()
+    {
+        fillQueue();
+        this.queue.sort();
+        return this.queue.order[0];
+    }
+
+    @Benchmark
+    public int buildBatch()
+    {
+        fillQueue();
+        this.queue.sort();
+
+        this.batch.clear();
+        for (int i = 0; i < this.queue.size; i++)
+        {
+            int item = this.queue.order[i];
+            this.batch.addQuad(this.queue.x[item], this.queue.y[item], this.queue.w[item], this.queue.h[item],
+                    this.queue.z[item], this.queue.rotation[item], 0, this.queue.color[item], this.queue.u[item], this.queue.v[item], this.queue.uw[item], this.queue.vh[item]);
+        }
+
+        return this.batch.indexCount();
+    }
+
+    private void fillQueue()
+    {
+        this.queue.clear();
+        for (int i = 0; i < this.sprites; i++)
+        {
+            this.queue.add(this.keys[i], null, this.positions[i * 2], this.positions[i * 2 + 1], 16, 16, 0, 0,
+                    0xffffffff, 0, 0, 1, 1);
+        }
+    }
+}
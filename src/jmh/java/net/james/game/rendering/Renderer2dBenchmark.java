@@ -0,0 +1,94 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Screen;
+import org.joml.Vector2f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.opengl.GL11C.glFinish;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+// A whole begin/draw/end frame. glFinish keeps the driver from queueing frames
+// ahead, so the numbers include the GPU work and not just the submission
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Renderer2dBenchmark
+{
+    @Param({"1000", "10000"})
+    public int sprites;
+
+    @Param({"1", "32"})
+    public int textures;
+
+    @Param({"BATCHED", "INSTANCED"})
+    public Renderer2d.ERenderMode mode;
+
+    private Screen screen;
+    private Renderer2d renderer;
+    private Texture[] spriteTextures;
+    private Vector2f[] positions;
+    private final Vector2f size = new Vector2f(16, 16);
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.screen = new Screen(1280, 720, "benchmark", new Color(0, 0, 0), true);
+        this.screen.open();
+        this.renderer = new Renderer2d(this.mode);
+
+        ByteBuffer pixels = memAlloc(16 * 16 * 4);
+        this.spriteTextures = new Texture[this.textures];
+        for (int i = 0; i < this.textures; i++)
+        {
+            this.spriteTextures[i] = new Texture(16, 16, Texture.ETextureFormat.RGBA, pixels);
+        }
+        memFree(pixels);
+
+        Random random = new Random(1234);
+        this.positions = new Vector2f[this.sprites];
+        for (int i = 0; i < this.sprites; i++)
+        {
+            this.positions[i] = new Vector2f(random.nextFloat() * 1280, random.nextFloat() * 720);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (Texture texture : this.spriteTextures)
+        {
+            texture.destroy();
+        }
+        this.renderer.destroy();
+        this.screen.close();
+    }
+
+    @Benchmark
+    public int frame()
+    {
+        this.renderer.begin();
+        for (int i = 0; i < this.sprites; i++)
+        {
+            this.renderer.drawSprite(this.spriteTextures[i % this.textures], this.positions[i], this.size);
+        }
+        this.renderer.end();
+
+        glFinish();
+        return this.renderer.getDrawCalls();
+    }
+}
@@ -0,0 +1,107 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Screen;
+import org.joml.Matrix4f;
+
+import java.lang.management.ManagementFactory;
+
+// Fails when the uniform upload path allocates. Every case from ShaderBenchmark is warmed up,
+// then the thread's allocation counter is read around a loop of calls. Any bytes left over
+// fail the run with exit code 1. Run with ./gradlew checkAllocations
+public class ShaderAllocationCheck
+{
+    private static final int WARMUP_CALLS = 200_000;
+    private static final int MEASURED_CALLS = 100_000;
+    private static final int ROUNDS = 3;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Case
+    {
+        void run(int call);
+    }
+
+    public static void main(String[] args)
+    {
+        Screen screen = new Screen(64, 64, "allocation check", new Color(0, 0, 0), true);
+        screen.open();
+
+        boolean failed;
+        try
+        {
+            Shader shader = new Shader("shaders/standard.glsl");
+            int projectionMatrix = shader.getUniformHandle("projectionMatrix");
+            int fontTexture = shader.getUniformHandle("isFontTexture");
+            shader.bind();
+
+            Matrix4f matrix = new Matrix4f();
+            int[] flags = new int[Renderer2d.TEXTURE_STACK_SIZE];
+
+            failed = check("matrixByName", call ->
+            {
+                matrix.setOrtho(0, call + 1, 0, 720, 1, -101);
+                shader.set("projectionMatrix", matrix);
+            });
+            failed |= check("matrixByHandle", call ->
+            {
+                matrix.setOrtho(0, call + 1, 0, 720, 1, -101);
+                shader.set(projectionMatrix, matrix);
+            });
+            failed |= check("matrixUnchanged", call -> shader.set(projectionMatrix, matrix));
+            failed |= check("intArrayByHandle", call ->
+            {
+                flags[call & (flags.length - 1)] ^= 1;
+                shader.set(fontTexture, flags, flags.length);
+            });
+        }
+        finally
+        {
+            screen.close();
+        }
+
+        if (failed)
+        {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String name, Case test)
+    {
+        for (int i = 0; i < WARMUP_CALLS; i++)
+        {
+            test.run(i);
+        }
+
+        // Reading the counter can allocate itself, so one read's worth is taken off. The first
+        // round can pick up one-off allocations outside the loop, a real per-call allocation
+        // shows in every round, so the lowest round counts
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            long overhead = allocatedBytes();
+            overhead = allocatedBytes() - overhead;
+
+            long before = allocatedBytes();
+            for (int i = 0; i < MEASURED_CALLS; i++)
+            {
+                test.run(i);
+            }
+            allocated = Math.min(allocated, allocatedBytes() - before - overhead);
+        }
+
+        System.out.printf("%-18s %.3f bytes/call%n", name, (double) allocated / MEASURED_CALLS);
+        if (allocated > 0)
+        {
+            System.err.println(name + " allocated " + allocated + " bytes over " + MEASURED_CALLS + " calls.");
+            return true;
+        }
+
+        return false;
+    }
+
+    private static long allocatedBytes()
+    {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,77 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Screen;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Uniform updates on the standard shader, by name and by handle, with and without
+// the value actually changing so both the shadow check and the glUniform path are covered
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShaderBenchmark
+{
+    private Screen screen;
+    private Shader shader;
+    private int projectionMatrix;
+    private int fontTexture;
+
+    private final Matrix4f matrix = new Matrix4f();
+    private final int[] flags = new int[16];
+    private int frame;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.screen = new Screen(64, 64, "benchmark", new Color(0, 0, 0), true);
+        this.screen.open();
+        this.shader = new Shader("shaders/standard.glsl");
+        this.projectionMatrix = this.shader.getUniformHandle("projectionMatrix");
+        this.fontTexture = this.shader.getUniformHandle("isFontTexture");
+        this.shader.bind();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.screen.close();
+    }
+
+    @Benchmark
+    public void matrixByName()
+    {
+        this.matrix.setOrtho(0, ++this.frame, 0, 720, 1, -101);
+        this.shader.set("projectionMatrix", this.matrix);
+    }
+
+    @Benchmark
+    public void matrixByHandle()
+    {
+        this.matrix.setOrtho(0, ++this.frame, 0, 720, 1, -101);
+        this.shader.set(this.projectionMatrix, this.matrix);
+    }
+
+    @Benchmark
+    public void matrixUnchanged()
+    {
+        this.shader.set(this.projectionMatrix, this.matrix);
+    }
+
+    @Benchmark
+    public void intArrayByHandle()
+    {
+        this.flags[this.frame++ & 15] ^= 1;
+        this.shader.set(this.fontTexture, this.flags, this.flags.length);
+    }
+}
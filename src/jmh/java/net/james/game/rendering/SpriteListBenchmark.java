@@ -0,0 +1,92 @@
+package net.james.game.rendering;
+
+import org.joml.Vector2f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+// Recording and building sprites split over several lists on the common pool, the part of
+// a frame that SpriteList moves off the GL thread
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpriteListBenchmark
+{
+    @Param({"100000"})
+    public int sprites;
+
+    @Param({"1", "4", "16"})
+    public int lists;
+
+    @Param({"BATCHED", "INSTANCED"})
+    public Renderer2d.ERenderMode mode;
+
+    private SpriteList[] spriteLists;
+    private Vector2f[] positions;
+    private final Vector2f size = new Vector2f(16, 16);
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.spriteLists = new SpriteList[this.lists];
+        for (int i = 0; i < this.lists; i++)
+        {
+            this.spriteLists[i] = new SpriteList(this.mode, this.sprites / this.lists);
+        }
+
+        Random random = new Random(1234);
+        this.positions = new Vector2f[this.sprites];
+        for (int i = 0; i < this.sprites; i++)
+        {
+            this.positions[i] = new Vector2f(random.nextFloat() * 1920, random.nextFloat() * 1080);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (SpriteList list : this.spriteLists)
+        {
+            list.destroy();
+        }
+    }
+
+    @Benchmark
+    public int build()
+    {
+        IntStream.range(0, this.lists).parallel().forEach(this::record);
+
+        int count = 0;
+        for (SpriteList list : this.spriteLists)
+        {
+            count += list.getSpriteCount();
+        }
+        return count;
+    }
+
+    private void record(int index)
+    {
+        SpriteList list = this.spriteLists[index];
+        int first = index * this.sprites / this.lists;
+        int last = (index + 1) * this.sprites / this.lists;
+
+        list.begin();
+        for (int i = first; i < last; i++)
+        {
+            list.setLayer(i & 3);
+            list.drawBox(this.positions[i], this.size);
+        }
+        list.end();
+    }
+}
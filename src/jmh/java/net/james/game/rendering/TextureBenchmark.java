@@ -0,0 +1,67 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Screen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.opengl.GL11C.glFinish;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+// Creating a texture from pixels already in memory and replacing part of one
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextureBenchmark
+{
+    @Param({"64", "1024"})
+    public int size;
+
+    private Screen screen;
+    private ByteBuffer pixels;
+    private Texture texture;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.screen = new Screen(64, 64, "benchmark", new Color(0, 0, 0), true);
+        this.screen.open();
+        this.pixels = memAlloc(this.size * this.size * 4);
+        this.texture = new Texture(this.size, this.size, Texture.ETextureFormat.RGBA, this.pixels);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.texture.destroy();
+        memFree(this.pixels);
+        this.screen.close();
+    }
+
+    @Benchmark
+    public void create()
+    {
+        Texture created = new Texture(this.size, this.size, Texture.ETextureFormat.RGBA, this.pixels);
+        glFinish();
+        created.destroy();
+    }
+
+    @Benchmark
+    public void update()
+    {
+        this.texture.update(0, 0, this.size, this.size, this.pixels);
+        glFinish();
+    }
+}
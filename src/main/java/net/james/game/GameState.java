@@ -0,0 +1,22 @@
+package net.james.game;
+
+import net.james.game.core.Snapshot;
+
+public class GameState implements Snapshot<GameState>
+{
+    public long tick;
+    public double time;
+
+    public void update(float dt)
+    {
+        tick++;
+        time += dt;
+    }
+
+    @Override
+    public void copyFrom(GameState other)
+    {
+        this.tick = other.tick;
+        this.time = other.time;
+    }
+}
@@ -1,13 +1,39 @@
 package net.james.game;
 
+import net.james.game.core.AssetArchive;
 import net.james.game.core.Color;
+import net.james.game.core.Config;
+import net.james.game.core.DynamicResolution;
+import net.james.game.core.GameLoop;
+import net.james.game.core.PngFrameWriter;
+import net.james.game.core.Profiler;
 import net.james.game.core.Screen;
+import net.james.game.rendering.Mesh;
+import net.james.game.rendering.MeshCache;
+import net.james.game.rendering.ProgramBinaryCache;
+import net.james.game.rendering.Renderer2d;
 import net.james.game.rendering.Shader;
+import net.james.game.rendering.Texture;
+import net.james.game.rendering.TextureCache;
+import net.james.game.rendering.TextureLoader;
+import net.james.game.rendering.TextureManager;
 import org.lwjgl.Version;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class Main
 {
-    private static final Screen screen = new Screen(800, 600, "Hello LWJGL!", Color.fromHex("#ffffffff"));
+    // -Dgame.headless=true renders offscreen, -Dgame.capture=<dir> writes every frame there
+    // and -Dgame.frames=<n> quits after n frames. -Dgame.assets=<file> reads assets from an
+    // archive built by packAssets, when there is one
+    private static final boolean HEADLESS = Boolean.getBoolean("game.headless");
+    private static final String CAPTURE_DIRECTORY = System.getProperty("game.capture");
+    private static final long FRAME_LIMIT = Long.getLong("game.frames", 0);
+    private static final Path ASSET_ARCHIVE = Path.of(System.getProperty("game.assets", "assets.pak"));
+
+    private static final Screen screen = new Screen(800, 600, "Hello LWJGL!", Color.fromHex("#ffffffff"), HEADLESS);
+    private static final int TICKS_PER_SECOND = 60;
 
     public void run()
     {
@@ -15,11 +41,50 @@ public class Main
 
         try
         {
+            Config config = Config.load(Path.of("config.toml"));
+            if (Files.isRegularFile(ASSET_ARCHIVE))
+            {
+                AssetArchive.mount(AssetArchive.open(ASSET_ARCHIVE));
+            }
+
+            screen.setVsync(config.vsync);
             screen.open();
+            Profiler.setEnabled(true);
+            if (config.dynamicResolution)
+            {
+                screen.setDynamicResolution(new DynamicResolution(config));
+            }
+
+            Shader.setBinaryCache(new ProgramBinaryCache(Path.of("cache", "shaders")));
+            Texture.setCache(new TextureCache(Path.of("cache", "textures")));
+            Mesh.setCache(new MeshCache(Path.of("cache", "meshes")));
+            Texture.setManager(new TextureManager(config.textureBudgetBytes));
 
             Shader shader = new Shader("shaders/standard.glsl");
 
-            loop();
+            System.out.println(Shader.getBinaryCache());
+
+            Renderer2d renderer = new Renderer2d(Renderer2d.ERenderMode.BATCHED, config);
+            TextureLoader textureLoader = new TextureLoader(config);
+
+            if (CAPTURE_DIRECTORY != null)
+            {
+                try (PngFrameWriter writer = new PngFrameWriter(Path.of(CAPTURE_DIRECTORY)))
+                {
+                    screen.setFrameConsumer(writer);
+                    loop(renderer, textureLoader);
+                    screen.setFrameConsumer(null);
+                }
+            }
+            else
+            {
+                loop(renderer, textureLoader);
+            }
+
+            textureLoader.destroy();
+            renderer.destroy();
+
+            Profiler.summarize().forEach(System.out::println);
         }
         catch (Exception e)
         {
@@ -29,12 +94,23 @@ public class Main
         screen.close();
     }
 
-    private void loop()
+    private void loop(Renderer2d renderer, TextureLoader textureLoader)
     {
-        while (!screen.shouldClose())
-        {
-            screen.newFrame();
-        }
+        GameLoop<GameState> gameLoop = new GameLoop<>(screen, GameState::new, TICKS_PER_SECOND,
+                (state, dt) -> state.update(dt),
+                (previous, current, alpha) ->
+                {
+                    if (FRAME_LIMIT > 0 && screen.getFrame() + 1 >= FRAME_LIMIT)
+                    {
+                        screen.setShouldClose(true);
+                    }
+
+                    textureLoader.update();
+                    renderer.begin();
+                    renderer.end();
+                });
+
+        gameLoop.run();
     }
 
     public static void main(String[] args)
@@ -0,0 +1,418 @@
+package net.james.game.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.util.lz4.LZ4.LZ4_compressBound;
+import static org.lwjgl.util.lz4.LZ4.LZ4_decompress_safe;
+import static org.lwjgl.util.lz4.LZ4HC.LZ4HC_CLEVEL_MAX;
+import static org.lwjgl.util.lz4.LZ4HC.LZ4_compress_HC;
+
+// Many small assets packed into one file that is mapped once, so finding an asset is a binary
+// search over path hashes and reading a stored one is a slice of the mapping instead of a file
+// open or a zip entry. Entries are LZ4 compressed when that saves enough to be worth it and
+// stored as they are otherwise. Lookups only read, so loader threads can share an archive.
+// Built by the packAssets Gradle task, or by running this class.
+// File layout, little endian: magic, version, entry count, 0, then per entry the 64-bit FNV-1a
+// hash of its path, offset (8), stored size, size, CRC32C of the contents, name offset, name
+// length and compression, sorted by hash, then the UTF-8 paths, then the contents, each 16-byte aligned
+public class AssetArchive
+{
+    private static final int MAGIC = 0x4a47504b;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int ENTRY_SIZE = 40;
+    private static final int ALIGNMENT = 16;
+
+    private static final int STORED = 0;
+    private static final int COMPRESSED = 1;
+
+    // Compressing has to save at least an eighth, already compressed formats like PNG rarely do
+    private static final int MIN_SAVING = 8;
+
+    private static AssetArchive mounted;
+
+    private final Path file;
+    private final MappedByteBuffer mapped;
+    private final long start;
+    private final long end;
+
+    // Copied out of the index so the binary search stays in one array
+    private final long[] hashes;
+
+    private AssetArchive(Path file, MappedByteBuffer mapped, long[] hashes)
+    {
+        this.file = file;
+        this.mapped = mapped;
+        this.start = memAddress(mapped);
+        this.end = this.start + mapped.capacity();
+        this.hashes = hashes;
+    }
+
+    // Assets are read from this archive first by Shader, Texture and Font, null goes back to loose files
+    public static void mount(AssetArchive archive)
+    {
+        mounted = archive;
+    }
+
+    public static AssetArchive getMounted()
+    {
+        return mounted;
+    }
+
+    public static AssetArchive open(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Asset archive " + file + " is over 2 GB");
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (size < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                    || mapped.getInt(8) < 0 || HEADER_SIZE + (long) mapped.getInt(8) * ENTRY_SIZE > size)
+            {
+                throw new IOException(file + " is not a version " + VERSION + " asset archive");
+            }
+
+            long[] hashes = new long[mapped.getInt(8)];
+            for (int i = 0; i < hashes.length; i++)
+            {
+                int entry = HEADER_SIZE + i * ENTRY_SIZE;
+                hashes[i] = mapped.getLong(entry);
+
+                long offset = mapped.getLong(entry + 8);
+                long stored = mapped.getInt(entry + 16) & 0xffffffffL;
+                long nameEnd = (mapped.getInt(entry + 28) & 0xffffffffL) + (mapped.getInt(entry + 32) & 0xffffffffL);
+                if (offset < 0 || offset + stored > size || nameEnd > size || (i > 0 && hashes[i] < hashes[i - 1]))
+                {
+                    throw new IOException("Asset archive " + file + " has a broken entry " + i);
+                }
+            }
+
+            return new AssetArchive(file, mapped, hashes);
+        }
+    }
+
+    public Path getFile()
+    {
+        return this.file;
+    }
+
+    public int size()
+    {
+        return this.hashes.length;
+    }
+
+    public boolean contains(String path)
+    {
+        return find(path) != -1;
+    }
+
+    // Size of the asset once read, -1 if it isn't packed
+    public int getSize(String path)
+    {
+        int entry = find(path);
+        return entry == -1 ? -1 : this.mapped.getInt(entry + 20);
+    }
+
+    // CRC32C of the asset's contents, -1 if it isn't packed. Changes whenever the contents do,
+    // which makes it a cache key that survives rebuilding the archive
+    public long getChecksum(String path)
+    {
+        int entry = find(path);
+        return entry == -1 ? -1 : this.mapped.getInt(entry + 24) & 0xffffffffL;
+    }
+
+    // The asset's bytes or null if it isn't packed. Stored assets are a read only view of the
+    // mapping, compressed ones are decompressed into native memory. Hand it back to release
+    public ByteBuffer get(String path) throws RuntimeException
+    {
+        int entry = find(path);
+        if (entry == -1)
+        {
+            return null;
+        }
+
+        int offset = (int) this.mapped.getLong(entry + 8);
+        int stored = this.mapped.getInt(entry + 16);
+        int size = this.mapped.getInt(entry + 20);
+
+        ByteBuffer data = this.mapped.slice(offset, stored);
+        if (this.mapped.getInt(entry + 36) == STORED)
+        {
+            return data;
+        }
+
+        ByteBuffer decompressed = memAlloc(size);
+        if (LZ4_decompress_safe(data, decompressed) != size)
+        {
+            memFree(decompressed);
+            throw new RuntimeException("Asset " + path + " in " + this.file + " is corrupt");
+        }
+
+        return decompressed;
+    }
+
+    // Frees what get returned, views of the mapping are left alone
+    public void release(ByteBuffer data)
+    {
+        long address = memAddress0(data);
+        if (address < this.start || address >= this.end)
+        {
+            memFree(data);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("AssetArchive{file=%s, assets=%d, size=%.1fMB}", this.file, this.hashes.length,
+                this.mapped.capacity() / 1048576.0);
+    }
+
+    // Paths are stored with forward slashes and without a leading ./ or /
+    public static String normalize(String path)
+    {
+        String normalized = path.replace('\\', '/');
+        while (normalized.startsWith("./") || normalized.startsWith("/"))
+        {
+            normalized = normalized.substring(normalized.charAt(0) == '.' ? 2 : 1);
+        }
+
+        return normalized;
+    }
+
+    // Byte offset of path's index entry, or -1
+    private int find(String path)
+    {
+        byte[] name = normalize(path).getBytes(StandardCharsets.UTF_8);
+        long hash = hash(name);
+
+        // Leftmost entry with the hash, then past any other paths that share it
+        int low = 0, high = this.hashes.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (this.hashes[middle] < hash)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        for (int i = low; i < this.hashes.length && this.hashes[i] == hash; i++)
+        {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            if (nameEquals(entry, name))
+            {
+                return entry;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean nameEquals(int entry, byte[] name)
+    {
+        int offset = this.mapped.getInt(entry + 28);
+        if (this.mapped.getInt(entry + 32) != name.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++)
+        {
+            if (this.mapped.get(offset + i) != name[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long hash(byte[] name)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name)
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    // Packs files, keyed by the path they will be looked up with, into archive. Contents go
+    // straight to disk one asset at a time and the index is written last, so memory use doesn't
+    // grow with the archive. Written next to archive and moved into place
+    public static void build(Path archive, Map<String, Path> files) throws IOException
+    {
+        List<String> names = new ArrayList<>(files.size());
+        for (String path : files.keySet())
+        {
+            names.add(normalize(path));
+        }
+
+        byte[][] encoded = new byte[names.size()][];
+        long namesSize = 0;
+        for (int i = 0; i < encoded.length; i++)
+        {
+            encoded[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            namesSize += encoded[i].length;
+        }
+
+        long namesOffset = HEADER_SIZE + (long) ENTRY_SIZE * encoded.length;
+        long offset = align(namesOffset + namesSize);
+
+        // hash, offset, stored, size, checksum, name offset, name length, compression
+        long[][] entries = new long[encoded.length][];
+
+        Path directory = archive.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, archive.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long nameOffset = namesOffset;
+            int i = 0;
+            for (Path source : files.values())
+            {
+                byte[] bytes = Files.readAllBytes(source);
+                CRC32C crc = new CRC32C();
+                crc.update(bytes);
+
+                ByteBuffer contents = memAlloc(Math.max(1, bytes.length));
+                ByteBuffer compressed = memAlloc(Math.max(1, LZ4_compressBound(bytes.length)));
+                try
+                {
+                    contents.put(bytes).flip();
+                    int compressedSize = bytes.length == 0 ? 0 : LZ4_compress_HC(contents, compressed, LZ4HC_CLEVEL_MAX);
+
+                    boolean compress = compressedSize > 0 && compressedSize <= bytes.length - bytes.length / MIN_SAVING;
+                    ByteBuffer data = compress ? compressed.limit(compressedSize) : contents;
+
+                    entries[i] = new long[] { hash(encoded[i]), offset, data.remaining(), bytes.length, crc.getValue(),
+                            nameOffset, encoded[i].length, compress ? COMPRESSED : STORED };
+
+                    write(channel, data, offset);
+                }
+                finally
+                {
+                    memFree(contents);
+                    memFree(compressed);
+                }
+
+                offset = align(offset + entries[i][2]);
+                nameOffset += encoded[i].length;
+                i++;
+            }
+
+            if (offset > Integer.MAX_VALUE)
+            {
+                throw new IOException("Assets don't fit in a 2 GB archive");
+            }
+
+            Arrays.sort(entries, Comparator.comparingLong(entry -> entry[0]));
+
+            ByteBuffer index = ByteBuffer.allocate((int) align(namesOffset + namesSize)).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(MAGIC).putInt(VERSION).putInt(entries.length).putInt(0);
+            for (long[] entry : entries)
+            {
+                index.putLong(entry[0]).putLong(entry[1]);
+                for (int field = 2; field < entry.length; field++)
+                {
+                    index.putInt((int) entry[field]);
+                }
+            }
+
+            for (byte[] name : encoded)
+            {
+                index.put(name);
+            }
+
+            write(channel, index.clear(), 0);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException
+    {
+        while (data.hasRemaining())
+        {
+            position += channel.write(data, position);
+        }
+    }
+
+    // Packs directories: <archive> <directory>[=<prefix>]... Every file is keyed by its path
+    // relative to the directory, after prefix/ when one is given. Missing directories are skipped
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: AssetArchive <archive> <directory>[=<prefix>]...");
+            System.exit(1);
+        }
+
+        Map<String, Path> files = new TreeMap<>();
+        for (int i = 1; i < args.length; i++)
+        {
+            int split = args[i].indexOf('=');
+            Path root = Path.of(split == -1 ? args[i] : args[i].substring(0, split));
+            String prefix = split == -1 ? "" : normalize(args[i].substring(split + 1)) + "/";
+
+            if (!Files.isDirectory(root))
+            {
+                System.out.println("Skipping missing directory " + root);
+                continue;
+            }
+
+            try (Stream<Path> walk = Files.walk(root))
+            {
+                for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator)
+                {
+                    files.put(prefix + normalize(root.relativize(file).toString()), file);
+                }
+            }
+        }
+
+        Path archive = Path.of(args[0]);
+        build(archive, files);
+        System.out.println(open(archive));
+    }
+}
@@ -0,0 +1,54 @@
+package net.james.game.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Writes cache files next to their final name and moves them into place, so a crash never leaves
+// half a file behind. Filesystems without atomic moves get a plain replace, and the temporary
+// file is deleted whenever the write or the move fails
+public final class AtomicFile
+{
+    private AtomicFile()
+    {
+    }
+
+    // Writes the remaining bytes of data, its position is left alone
+    public static void write(Path file, ByteBuffer data) throws IOException
+    {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                ByteBuffer remaining = data.duplicate();
+                while (remaining.hasRemaining())
+                {
+                    channel.write(remaining);
+                }
+            }
+
+            try
+            {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package net.james.game.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+// The part of TextureCache and MeshCache that doesn't care what was baked. Baked files start with
+// a magic and a version, are keyed by the source path, size and modification time, and are written
+// on the first load that misses or ahead of time by running the subclass. A file is validated in
+// full before it is mapped, a mapped file can't be deleted on Windows, and one that fails is
+// deleted so the next load bakes it again
+public abstract class BakedFileCache
+{
+    private final Path directory;
+    private final String kind;
+    private final String extension;
+    private final int magic;
+    private final int version;
+    private final int headerSize;
+
+    private int hits;
+    private int misses;
+    private int rejected;
+
+    // kind names the files in messages, headerSize bytes are read and handed to validate
+    protected BakedFileCache(Path directory, String kind, String extension, int magic, int version, int headerSize)
+    {
+        this.directory = directory;
+        this.kind = kind;
+        this.extension = extension;
+        this.magic = magic;
+        this.version = version;
+        this.headerSize = headerSize;
+    }
+
+    public int getHits()
+    {
+        return this.hits;
+    }
+
+    public int getMisses()
+    {
+        return this.misses;
+    }
+
+    // Files that were unreadable or from another version and had to be baked again
+    public int getRejected()
+    {
+        return this.rejected;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s{hits=%d, misses=%d, rejected=%d}", getClass().getSimpleName(), this.hits, this.misses, this.rejected);
+    }
+
+    // Bakes fileName unless an up to date file is already there. Needs no GL context
+    public abstract Path bake(String fileName) throws IOException;
+
+    // Checks everything after the magic and version. The header is little endian and the channel
+    // is positioned right after it, size is the file's and fits in an int
+    protected abstract boolean validate(ByteBuffer header, FileChannel channel, long size) throws IOException;
+
+    // Maps the file if it is there and valid, counting a hit, or returns null and counts a miss
+    protected ByteBuffer map(Path file)
+    {
+        if (!Files.isRegularFile(file))
+        {
+            this.misses++;
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            ByteBuffer header = read(channel, this.headerSize);
+            if (header.hasRemaining() || header.getInt(0) != this.magic || header.getInt(4) != this.version
+                    || size > Integer.MAX_VALUE || !validate(header, channel, size))
+            {
+                reject(file);
+                this.misses++;
+                return null;
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.hits++;
+            return mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to map baked " + this.kind + " " + file + ": " + e.getMessage());
+            this.misses++;
+            return null;
+        }
+    }
+
+    // Reads bytes from the channel's position, a short file leaves the result with bytes remaining
+    protected static ByteBuffer read(FileChannel channel, int bytes) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int read = 0;
+        while (buffer.hasRemaining() && read >= 0)
+        {
+            read = channel.read(buffer);
+        }
+
+        return buffer;
+    }
+
+    protected void store(Path file, ByteBuffer baked) throws IOException
+    {
+        AtomicFile.write(file, baked);
+    }
+
+    // For loads, which can go on with what they baked when the file can't be written
+    protected void tryStore(Path file, ByteBuffer baked)
+    {
+        try
+        {
+            store(file, baked);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to write baked " + this.kind + " " + file + ": " + e.getMessage());
+        }
+    }
+
+    // variant separates bakes of one source with different settings, null if there is only one
+    protected Path getFile(String fileName, String variant)
+    {
+        Path source = Path.of(fileName).toAbsolutePath().normalize();
+        AssetArchive archive = AssetArchive.getMounted();
+        long checksum = archive != null ? archive.getChecksum(fileName) : -1;
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            // Packed assets are keyed by their contents, the archive's own timestamp changes on every rebuild
+            if (checksum != -1)
+            {
+                digest.update(("archive:" + AssetArchive.normalize(fileName)).getBytes(StandardCharsets.UTF_8));
+                update(digest, variant);
+                update(digest, Long.toString(archive.getSize(fileName)));
+                update(digest, Long.toString(checksum));
+            }
+            else
+            {
+                digest.update(source.toString().getBytes(StandardCharsets.UTF_8));
+                update(digest, variant);
+
+                // A missing source still gets a name, baking it reports the error
+                if (Files.isRegularFile(source))
+                {
+                    update(digest, Long.toString(Files.size(source)));
+                    update(digest, Long.toString(Files.getLastModifiedTime(source).toMillis()));
+                }
+            }
+
+            return this.directory.resolve(HexFormat.of().formatHex(digest.digest()) + this.extension);
+        }
+        catch (NoSuchAlgorithmException | IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String field)
+    {
+        if (field != null)
+        {
+            digest.update((byte) 0);
+            digest.update(field.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void reject(Path file)
+    {
+        this.rejected++;
+
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to delete baked " + this.kind + " " + file + ": " + e.getMessage());
+        }
+    }
+
+    // The body of the subclasses' main: bakes every file under args[first..] whose extension
+    // matches one of extensions, a regex alternation such as "png|jpe?g"
+    protected static void bakeAll(BakedFileCache cache, String[] args, int first, String extensions) throws IOException
+    {
+        for (int i = first; i < args.length; i++)
+        {
+            List<Path> sources;
+            try (Stream<Path> files = Files.walk(Path.of(args[i])))
+            {
+                sources = files.filter(Files::isRegularFile)
+                        .filter(path -> path.toString().matches("(?i).*\\.(" + extensions + ")$"))
+                        .toList();
+            }
+
+            for (Path source : sources)
+            {
+                System.out.println(source + " -> " + cache.bake(source.toString()));
+            }
+        }
+    }
+}
@@ -37,6 +37,17 @@ public class Color
         );
     }
 
+    // Packs components in [0, 1] the same way Color stores them, red in the top byte
+    public static int pack(float r, float g, float b, float a)
+    {
+        return (toByte(r) << 24) | (toByte(g) << 16) | (toByte(b) << 8) | toByte(a);
+    }
+
+    private static int toByte(float component)
+    {
+        return Math.round(Math.max(0, Math.min(1, component)) * 255);
+    }
+
     private int value;
 
     public Color(int r, int g, int b)
@@ -60,6 +71,12 @@ public class Color
         this.value = value;
     }
 
+    // Red in the top byte, alpha in the bottom one
+    public int rgba()
+    {
+        return value;
+    }
+
     public Vector4f toVec4()
     {
         return new Vector4f(
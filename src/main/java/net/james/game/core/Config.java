@@ -1,5 +1,123 @@
 package net.james.game.core;
 
+import com.moandjiezana.toml.Toml;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Performance settings read from a TOML file, anything missing keeps its default:
+//
+// [display]
+// vsync = "on"                   # off, on or adaptive (late frames tear instead of waiting)
+//
+// [resolution]
+// dynamic = true
+// target_frame_ms = 16.6         # GPU time per frame the scene is scaled to fit
+// min_scale = 0.5
+// max_scale = 1.0
+//
+// [rendering]
+// initial_sprites = 512          # starting capacity of each sprite batch, they grow as needed
+// stream_buffer_mb = 4           # size of one region of the per-frame vertex stream
+// texture_budget_mb = 1536
+// texture_upload_mb = 8          # pixels the texture loader hands to GL per frame
+//
+// [threads]
+// texture_decode = 2
 public class Config
 {
+    public enum EVsync
+    {
+        OFF(0),
+        ON(1),
+        // Swaps straight away when a frame misses the vertical blank, needs the swap control tear extension
+        ADAPTIVE(-1);
+
+        public final int interval;
+
+        EVsync(int interval)
+        {
+            this.interval = interval;
+        }
+    }
+
+    public EVsync vsync = EVsync.ON;
+
+    public boolean dynamicResolution = true;
+    public double targetFrameMillis = 16.6;
+    public float minRenderScale = 0.5f;
+    public float maxRenderScale = 1.0f;
+
+    public int initialSprites = 512;
+    public long streamBufferBytes = 4L * 1024 * 1024;
+    public long textureBudgetBytes = 1536L * 1024 * 1024;
+    public long textureUploadBytes = 8L * 1024 * 1024;
+
+    public int textureDecodeThreads = 2;
+
+    // Reads file if it exists, otherwise everything stays at its default
+    public static Config load(Path file) throws RuntimeException
+    {
+        Config config = new Config();
+        if (!Files.isRegularFile(file))
+        {
+            return config;
+        }
+
+        try
+        {
+            config.read(new Toml().read(file.toFile()));
+        }
+        catch (RuntimeException e)
+        {
+            throw new RuntimeException("Invalid config " + file + ": " + e.getMessage(), e);
+        }
+
+        return config;
+    }
+
+    public static Config parse(String toml)
+    {
+        Config config = new Config();
+        config.read(new Toml().read(toml));
+        return config;
+    }
+
+    private void read(Toml toml)
+    {
+        this.vsync = EVsync.valueOf(toml.getString("display.vsync", this.vsync.name()).toUpperCase());
+
+        this.dynamicResolution = toml.getBoolean("resolution.dynamic", this.dynamicResolution);
+        this.targetFrameMillis = toml.getDouble("resolution.target_frame_ms", this.targetFrameMillis);
+        this.minRenderScale = toml.getDouble("resolution.min_scale", (double) this.minRenderScale).floatValue();
+        this.maxRenderScale = toml.getDouble("resolution.max_scale", (double) this.maxRenderScale).floatValue();
+
+        this.initialSprites = toml.getLong("rendering.initial_sprites", (long) this.initialSprites).intValue();
+        this.streamBufferBytes = toml.getLong("rendering.stream_buffer_mb", this.streamBufferBytes >> 20) << 20;
+        this.textureBudgetBytes = toml.getLong("rendering.texture_budget_mb", this.textureBudgetBytes >> 20) << 20;
+        this.textureUploadBytes = toml.getLong("rendering.texture_upload_mb", this.textureUploadBytes >> 20) << 20;
+
+        this.textureDecodeThreads = toml.getLong("threads.texture_decode", (long) this.textureDecodeThreads).intValue();
+
+        validate();
+    }
+
+    private void validate()
+    {
+        if (this.targetFrameMillis <= 0)
+        {
+            throw new IllegalArgumentException("resolution.target_frame_ms must be positive");
+        }
+
+        if (this.minRenderScale <= 0 || this.minRenderScale > this.maxRenderScale || this.maxRenderScale > 2)
+        {
+            throw new IllegalArgumentException("resolution scales must satisfy 0 < min_scale <= max_scale <= 2");
+        }
+
+        if (this.initialSprites <= 0 || this.streamBufferBytes <= 0 || this.textureUploadBytes <= 0
+                || this.textureDecodeThreads <= 0)
+        {
+            throw new IllegalArgumentException("rendering sizes and thread counts must be positive");
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package net.james.game.core;
+
+import net.james.game.rendering.GlState;
+
+import static org.lwjgl.opengl.GL30.*;
+
+// Renders the scene into an offscreen framebuffer at a fraction of the output size and stretches
+// it over the output, picking the fraction from measured GPU time so frames stay inside the
+// target. The framebuffer is allocated once at the largest scale and the scene only uses its
+// lower left corner, so changing scale never reallocates. GPU times come from the profiler and
+// trail the frame by a few frames, so the scale only moves every ADJUST_INTERVAL frames, and
+// nothing changes while the profiler is off. Used by Screen, see Screen.setDynamicResolution
+public class DynamicResolution
+{
+    private static final int PROFILE_SCENE = Profiler.scope("resolution.scene");
+
+    private static final int ADJUST_INTERVAL = 8;
+    private static final double SMOOTHING = 0.2;
+    // Scale down above this share of the target and back up below the lower one
+    private static final double HIGH_WATER = 0.95;
+    private static final double LOW_WATER = 0.75;
+    private static final double MAX_STEP = 0.1;
+
+    private final double targetNanos;
+    private final float minScale;
+    private final float maxScale;
+
+    private float scale;
+    private double smoothedNanos = -1;
+    private int framesSinceChange;
+
+    private int framebuffer;
+    private int colorRenderbuffer;
+    private int depthRenderbuffer;
+    private int allocatedWidth;
+    private int allocatedHeight;
+
+    private int outputWidth;
+    private int outputHeight;
+    private int renderWidth;
+    private int renderHeight;
+
+    public DynamicResolution(double targetFrameMillis, float minScale, float maxScale)
+    {
+        this.targetNanos = targetFrameMillis * 1_000_000;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.scale = maxScale;
+    }
+
+    public DynamicResolution(Config config)
+    {
+        this(config.targetFrameMillis, config.minRenderScale, config.maxRenderScale);
+    }
+
+    public float getScale()
+    {
+        return this.scale;
+    }
+
+    public int getRenderWidth()
+    {
+        return this.renderWidth;
+    }
+
+    public int getRenderHeight()
+    {
+        return this.renderHeight;
+    }
+
+    // Smoothed GPU time of the scene in milliseconds, -1 before the first measurement
+    public double getGpuMillis()
+    {
+        return this.smoothedNanos < 0 ? -1 : this.smoothedNanos / 1_000_000;
+    }
+
+    // Binds the offscreen framebuffer at the current scale of an output of width by height and clears it
+    public void begin(int width, int height)
+    {
+        adjust();
+
+        if (width != this.outputWidth || height != this.outputHeight)
+        {
+            this.outputWidth = width;
+            this.outputHeight = height;
+            allocate((int) Math.ceil(width * this.maxScale), (int) Math.ceil(height * this.maxScale));
+        }
+
+        this.renderWidth = Math.max(1, Math.min(this.allocatedWidth, Math.round(width * this.scale)));
+        this.renderHeight = Math.max(1, Math.min(this.allocatedHeight, Math.round(height * this.scale)));
+
+        GlState.bindFramebuffer(this.framebuffer);
+        glViewport(0, 0, this.renderWidth, this.renderHeight);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
+        Profiler.begin(PROFILE_SCENE);
+    }
+
+    // Stretches the rendered part over target with bilinear filtering and leaves target bound
+    public void end(int target)
+    {
+        Profiler.end();
+
+        // GlState only tracks the combined binding, the draw binding is changed behind its back
+        // and rebinding target through it afterwards puts both back in sync
+        GlState.bindFramebuffer(this.framebuffer);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, target);
+        glBlitFramebuffer(0, 0, this.renderWidth, this.renderHeight, 0, 0, this.outputWidth, this.outputHeight,
+                GL_COLOR_BUFFER_BIT, this.scale == 1 ? GL_NEAREST : GL_LINEAR);
+        GlState.bindFramebuffer(target);
+
+        glViewport(0, 0, this.outputWidth, this.outputHeight);
+    }
+
+    public void destroy()
+    {
+        if (this.framebuffer != 0)
+        {
+            GlState.deleteFramebuffer(this.framebuffer);
+            glDeleteRenderbuffers(this.colorRenderbuffer);
+            glDeleteRenderbuffers(this.depthRenderbuffer);
+            this.framebuffer = 0;
+        }
+    }
+
+    // GPU time grows with the pixel count, so the scale moves by the square root of how far off target it is
+    private void adjust()
+    {
+        long nanos = Profiler.getLatestGpuNanos(PROFILE_SCENE);
+        if (nanos < 0)
+        {
+            return;
+        }
+
+        this.smoothedNanos = this.smoothedNanos < 0 ? nanos : this.smoothedNanos + (nanos - this.smoothedNanos) * SMOOTHING;
+
+        if (++this.framesSinceChange < ADJUST_INTERVAL)
+        {
+            return;
+        }
+
+        double load = this.smoothedNanos / this.targetNanos;
+        if (load < LOW_WATER || load > HIGH_WATER)
+        {
+            double factor = Math.sqrt(((HIGH_WATER + LOW_WATER) / 2) / load);
+            factor = Math.max(1 - MAX_STEP, Math.min(1 + MAX_STEP, factor));
+
+            float scale = (float) Math.max(this.minScale, Math.min(this.maxScale, this.scale * factor));
+            if (scale != this.scale)
+            {
+                this.scale = scale;
+                this.framesSinceChange = 0;
+            }
+        }
+    }
+
+    private void allocate(int width, int height)
+    {
+        destroy();
+
+        this.allocatedWidth = width;
+        this.allocatedHeight = height;
+
+        this.colorRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, this.colorRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+
+        this.depthRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, this.depthRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH24_STENCIL8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        this.framebuffer = glGenFramebuffers();
+        GlState.bindFramebuffer(this.framebuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, this.colorRenderbuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, this.depthRenderbuffer);
+
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
+        {
+            throw new RuntimeException("Dynamic resolution framebuffer is incomplete");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.james.game.core;
+
+import net.james.game.rendering.GlState;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+// Copies finished frames back to the CPU without stalling the pipeline. Each capture reads the
+// bound read framebuffer into one of BUFFER_COUNT pixel pack buffers and fences it; the frame is
+// handed to the consumer once the GPU has passed the fence, normally a couple of frames later.
+// Only when every buffer is still in flight does a capture wait for the oldest one
+public class FrameReadback
+{
+    @FunctionalInterface
+    public interface Consumer
+    {
+        // Pixels are tightly packed RGBA rows, bottom row first, and are only valid during the call
+        void accept(long frame, int width, int height, ByteBuffer pixels);
+    }
+
+    private static final int BUFFER_COUNT = 3;
+
+    private final int width;
+    private final int height;
+    private final long size;
+    private final Consumer consumer;
+
+    private final int[] buffers = new int[BUFFER_COUNT];
+    private final long[] fences = new long[BUFFER_COUNT];
+    private final long[] frames = new long[BUFFER_COUNT];
+
+    // Captures in flight are the pending slots before next, oldest first
+    private int next;
+    private int pending;
+
+    private long framesDelivered;
+    private long stalls;
+
+    public FrameReadback(int width, int height, Consumer consumer)
+    {
+        this.width = width;
+        this.height = height;
+        this.size = (long) width * height * 4;
+        this.consumer = consumer;
+
+        glGenBuffers(this.buffers);
+        for (int buffer : this.buffers)
+        {
+            GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, buffer);
+            glBufferData(GL_PIXEL_PACK_BUFFER, this.size, GL_STREAM_READ);
+        }
+        GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    public void capture(long frame)
+    {
+        deliverFinished();
+        if (this.pending == BUFFER_COUNT)
+        {
+            this.stalls++;
+            deliverOldest(true);
+        }
+
+        int slot = this.next;
+        GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, this.buffers[slot]);
+        glReadPixels(0, 0, this.width, this.height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+        GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        this.fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        this.frames[slot] = frame;
+
+        this.next = (slot + 1) % BUFFER_COUNT;
+        this.pending++;
+    }
+
+    // Blocks until every capture so far has been handed to the consumer
+    public void finish()
+    {
+        while (this.pending > 0)
+        {
+            deliverOldest(true);
+        }
+    }
+
+    public long getFramesDelivered()
+    {
+        return this.framesDelivered;
+    }
+
+    // Captures that had to wait because all buffers were still in flight
+    public long getStalls()
+    {
+        return this.stalls;
+    }
+
+    public void destroy()
+    {
+        for (int i = 0; i < BUFFER_COUNT; i++)
+        {
+            if (this.fences[i] != NULL)
+            {
+                glDeleteSync(this.fences[i]);
+                this.fences[i] = NULL;
+            }
+        }
+
+        for (int buffer : this.buffers)
+        {
+            GlState.deleteBuffer(buffer);
+        }
+        this.pending = 0;
+    }
+
+    private void deliverFinished()
+    {
+        while (this.pending > 0 && deliverOldest(false))
+        {
+        }
+    }
+
+    private boolean deliverOldest(boolean wait)
+    {
+        int slot = (this.next - this.pending + BUFFER_COUNT) % BUFFER_COUNT;
+
+        int status = glClientWaitSync(this.fences[slot], 0, 0);
+        while (status == GL_TIMEOUT_EXPIRED && wait)
+        {
+            status = glClientWaitSync(this.fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000);
+        }
+
+        if (status == GL_TIMEOUT_EXPIRED)
+        {
+            return false;
+        }
+
+        glDeleteSync(this.fences[slot]);
+        this.fences[slot] = NULL;
+        this.pending--;
+
+        GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, this.buffers[slot]);
+        ByteBuffer pixels = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, this.size, GL_MAP_READ_BIT);
+        if (pixels != null)
+        {
+            try
+            {
+                this.consumer.accept(this.frames[slot], this.width, this.height, pixels);
+                this.framesDelivered++;
+            }
+            finally
+            {
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+                GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            }
+        }
+        else
+        {
+            GlState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        }
+
+        return true;
+    }
+}
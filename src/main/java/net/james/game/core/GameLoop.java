@@ -0,0 +1,180 @@
+package net.james.game.core;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Runs the simulation at a fixed rate on its own thread while the calling thread renders.
+// After every tick the simulation publishes a snapshot, and each frame the renderer gets the
+// last two snapshots plus how far it is between them, so slow frames never slow the game down
+// and long ticks never hold up a frame
+public class GameLoop<S extends Snapshot<S>>
+{
+    @FunctionalInterface
+    public interface Simulation<S>
+    {
+        void update(S state, float dt);
+    }
+
+    @FunctionalInterface
+    public interface Presenter<S>
+    {
+        // alpha is 0 at previous and 1 at current
+        void render(S previous, S current, float alpha);
+    }
+
+    // How far the simulation may fall behind before it skips ticks instead of catching up
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    private final Screen screen;
+    private final Simulation<S> simulation;
+    private final Presenter<S> presenter;
+    private final long tickNanos;
+    private final float tickSeconds;
+
+    // Owned by the simulation thread
+    private final S working;
+    private S spare;
+
+    // The published pair, only touched while holding lock
+    private final Object lock = new Object();
+    private S publishedPrevious;
+    private S publishedCurrent;
+    private long publishedTime;
+    private long publishedTick;
+
+    // Owned by the render thread
+    private final S renderPrevious;
+    private final S renderCurrent;
+    private long renderTick = -1;
+    private long renderTime;
+    private final Runnable draw = this::present;
+
+    private volatile boolean running;
+    private volatile Throwable failure;
+
+    public GameLoop(Screen screen, Supplier<S> factory, int ticksPerSecond, Simulation<S> simulation, Presenter<S> presenter)
+    {
+        this.screen = screen;
+        this.simulation = simulation;
+        this.presenter = presenter;
+        this.tickNanos = 1_000_000_000L / ticksPerSecond;
+        this.tickSeconds = 1.0f / ticksPerSecond;
+
+        this.working = factory.get();
+        this.spare = factory.get();
+        this.publishedPrevious = factory.get();
+        this.publishedCurrent = factory.get();
+        this.renderPrevious = factory.get();
+        this.renderCurrent = factory.get();
+    }
+
+    // Blocks until the screen is closed
+    public void run() throws RuntimeException
+    {
+        this.running = true;
+
+        Thread thread = new Thread(this::simulate, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+
+        try
+        {
+            while (!this.screen.shouldClose() && this.failure == null)
+            {
+                this.screen.newFrame(this.draw);
+            }
+        }
+        finally
+        {
+            this.running = false;
+            LockSupport.unpark(thread);
+
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.failure != null)
+        {
+            throw new RuntimeException("Simulation thread failed", this.failure);
+        }
+    }
+
+    private void simulate()
+    {
+        try
+        {
+            // Publish the initial state twice so the first frame has a pair to draw
+            long next = System.nanoTime();
+            publish(next, 0);
+            publish(next, 0);
+
+            long tick = 0;
+            while (this.running)
+            {
+                this.simulation.update(this.working, this.tickSeconds);
+                tick++;
+                next += this.tickNanos;
+                publish(next, tick);
+
+                long now = System.nanoTime();
+                if (now - next > this.tickNanos * MAX_CATCH_UP_TICKS)
+                {
+                    next = now;
+                }
+
+                long wait = next - now;
+                if (wait > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            this.failure = e;
+        }
+    }
+
+    private void publish(long time, long tick)
+    {
+        // Copy outside the lock, then just swap references inside it
+        this.spare.copyFrom(this.working);
+
+        synchronized (this.lock)
+        {
+            S oldest = this.publishedPrevious;
+            this.publishedPrevious = this.publishedCurrent;
+            this.publishedCurrent = this.spare;
+            this.publishedTime = time;
+            this.publishedTick = tick;
+            this.spare = oldest;
+        }
+    }
+
+    private void present()
+    {
+        synchronized (this.lock)
+        {
+            if (this.publishedTick != this.renderTick)
+            {
+                this.renderPrevious.copyFrom(this.publishedPrevious);
+                this.renderCurrent.copyFrom(this.publishedCurrent);
+                this.renderTime = this.publishedTime;
+                this.renderTick = this.publishedTick;
+            }
+        }
+
+        // Each tick is computed ahead of the time it represents, so the current snapshot
+        // is fully reached right when the simulation is due to publish the next one
+        float alpha = (float) (System.nanoTime() - (this.renderTime - this.tickNanos)) / this.tickNanos;
+        alpha = Math.max(0, Math.min(1, alpha));
+
+        this.presenter.render(this.renderPrevious, this.renderCurrent, alpha);
+    }
+}
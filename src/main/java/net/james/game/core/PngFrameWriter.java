@@ -0,0 +1,84 @@
+package net.james.game.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.stb.STBImageWrite.stbi_flip_vertically_on_write;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+// Writes read back frames to directory/frame-NNNNNN.png. Encoding happens on a writer thread so
+// the GL thread only pays for a copy, and at most MAX_QUEUED frames wait to be written at once
+public class PngFrameWriter implements FrameReadback.Consumer, AutoCloseable
+{
+    private static final int MAX_QUEUED = 8;
+
+    private final Path directory;
+    private final ExecutorService writer;
+    private final Semaphore queued = new Semaphore(MAX_QUEUED);
+
+    public PngFrameWriter(Path directory) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.writer = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "png-frame-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void accept(long frame, int width, int height, ByteBuffer pixels)
+    {
+        this.queued.acquireUninterruptibly();
+
+        ByteBuffer copy = memAlloc(pixels.remaining());
+        memCopy(pixels, copy);
+
+        String file = this.directory.resolve(String.format("frame-%06d.png", frame)).toString();
+        this.writer.execute(() ->
+        {
+            try
+            {
+                // GL rows start at the bottom
+                stbi_flip_vertically_on_write(true);
+                if (!stbi_write_png(file, width, height, 4, copy, width * 4))
+                {
+                    System.err.println("Unable to write frame " + file);
+                }
+            }
+            finally
+            {
+                memFree(copy);
+                this.queued.release();
+            }
+        });
+    }
+
+    // Waits for the queued frames to be written
+    @Override
+    public void close()
+    {
+        this.writer.shutdown();
+        try
+        {
+            if (!this.writer.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                System.err.println("Timed out writing frames to " + this.directory);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package net.james.game.core;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL33.*;
+
+// Per-frame CPU and GPU timings for named scopes. Scopes nest and may be entered more than
+// once a frame, their times add up. GPU times come from timestamp queries that are read back
+// FRAME_LATENCY frames later, and only if the GPU has finished with them, so nothing here
+// ever waits on the driver. GL_TIMESTAMP is used rather than GL_TIME_ELAPSED because elapsed
+// queries can't be nested. The last HISTORY_SIZE frames are kept for summaries and dumps.
+public final class Profiler
+{
+    public record Summary(String name, double cpuP50, double cpuP99, double cpuMax, double gpuP50, double gpuP99, double gpuMax)
+    {
+        @Override
+        public String toString()
+        {
+            return String.format("%-24s cpu p50 %7.3fms p99 %7.3fms max %7.3fms | gpu p50 %7.3fms p99 %7.3fms max %7.3fms",
+                    name, cpuP50, cpuP99, cpuMax, gpuP50, gpuP99, gpuMax);
+        }
+    }
+
+    private static final int MAX_SCOPES = 64;
+    private static final int MAX_DEPTH = 32;
+    private static final int HISTORY_SIZE = 1024;
+    private static final int FRAME_LATENCY = 4;
+    private static final int MAX_QUERIES = 256;
+
+    private static final List<String> names = new ArrayList<>();
+    private static final Map<String, Integer> scopes = new HashMap<>();
+
+    public static final int FRAME = scope("frame");
+
+    private static boolean enabled;
+    private static long frame;
+    private static long frameStart;
+
+    // Scope stack for the frame in progress
+    private static final int[] stack = new int[MAX_DEPTH];
+    private static final long[] stackStart = new long[MAX_DEPTH];
+    private static final int[] stackQuery = new int[MAX_DEPTH];
+    private static int depth;
+    // Scopes begun past MAX_DEPTH, which aren't timed. Their ends must not pop a timed scope
+    private static int overflow;
+    private static final long[] frameCpu = new long[MAX_SCOPES];
+
+    // Ring of completed frames, -1 marks a GPU time that never came back
+    private static final long[] frameNumbers = new long[HISTORY_SIZE];
+    private static final long[] cpuHistory = new long[HISTORY_SIZE * MAX_SCOPES];
+    private static final long[] gpuHistory = new long[HISTORY_SIZE * MAX_SCOPES];
+    private static long recorded;
+
+    // GPU time of each scope in the newest frame whose queries came back
+    private static final long[] latestGpu = new long[MAX_SCOPES];
+
+    // Timestamp queries per in-flight frame. Entry i pairs queries[2i] and queries[2i + 1] with queryScopes[i]
+    private static boolean gpuTiming;
+    private static int[][] queries;
+    private static final int[][] queryScopes = new int[FRAME_LATENCY][MAX_QUERIES / 2];
+    private static final int[] queryCount = new int[FRAME_LATENCY];
+    // Index into queries of the last timestamp issued, nested scopes end out of entry order
+    private static final int[] lastQuery = new int[FRAME_LATENCY];
+    private static final long[] queryFrame = new long[FRAME_LATENCY];
+
+    static
+    {
+        Arrays.fill(latestGpu, -1);
+    }
+
+    private Profiler()
+    {
+    }
+
+    // Resolve scope names once and keep the id, begin and end take the id
+    public static synchronized int scope(String name)
+    {
+        Integer id = scopes.get(name);
+        if (id != null)
+        {
+            return id;
+        }
+
+        if (names.size() == MAX_SCOPES)
+        {
+            throw new IllegalStateException("Too many profiler scopes, raise MAX_SCOPES");
+        }
+
+        id = names.size();
+        names.add(name);
+        scopes.put(name, id);
+        return id;
+    }
+
+    // Must be turned on from the GL thread with a current context
+    public static void setEnabled(boolean enable)
+    {
+        if (enable && queries == null)
+        {
+            GLCapabilities caps = GL.getCapabilities();
+            gpuTiming = caps.OpenGL33 || caps.GL_ARB_timer_query;
+            queries = new int[FRAME_LATENCY][MAX_QUERIES];
+            if (gpuTiming)
+            {
+                for (int[] pool : queries)
+                {
+                    glGenQueries(pool);
+                }
+            }
+
+            Arrays.fill(gpuHistory, -1);
+            Arrays.fill(latestGpu, -1);
+        }
+
+        enabled = enable;
+        depth = 0;
+        overflow = 0;
+        frameStart = System.nanoTime();
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    // Nanoseconds the GPU spent in scope in the most recent frame that has been measured, which
+    // trails the current frame by FRAME_LATENCY or more. -1 until a time has come back
+    public static long getLatestGpuNanos(int scope)
+    {
+        return latestGpu[scope];
+    }
+
+    public static void begin(int scope)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        if (depth == MAX_DEPTH)
+        {
+            overflow++;
+            return;
+        }
+
+        stack[depth] = scope;
+        stackQuery[depth] = -1;
+
+        int slot = (int) (frame % FRAME_LATENCY);
+        int count = queryCount[slot];
+        if (gpuTiming && count < MAX_QUERIES / 2)
+        {
+            glQueryCounter(queries[slot][count * 2], GL_TIMESTAMP);
+            lastQuery[slot] = count * 2;
+            queryScopes[slot][count] = scope;
+            queryCount[slot] = count + 1;
+            stackQuery[depth] = count;
+        }
+
+        stackStart[depth] = System.nanoTime();
+        depth++;
+    }
+
+    public static void end()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        if (overflow > 0)
+        {
+            overflow--;
+            return;
+        }
+
+        if (depth == 0)
+        {
+            return;
+        }
+
+        depth--;
+        frameCpu[stack[depth]] += System.nanoTime() - stackStart[depth];
+
+        if (stackQuery[depth] >= 0)
+        {
+            int slot = (int) (frame % FRAME_LATENCY);
+            glQueryCounter(queries[slot][stackQuery[depth] * 2 + 1], GL_TIMESTAMP);
+            lastQuery[slot] = stackQuery[depth] * 2 + 1;
+        }
+    }
+
+    // Closes the frame: stores the CPU times and collects the GPU times of older frames
+    public static void newFrame()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        // Close anything left open so every start query has its end query
+        overflow = 0;
+        while (depth > 0)
+        {
+            end();
+        }
+
+        long now = System.nanoTime();
+        frameCpu[FRAME] += now - frameStart;
+        frameStart = now;
+
+        int row = (int) (frame % HISTORY_SIZE);
+        frameNumbers[row] = frame;
+        System.arraycopy(frameCpu, 0, cpuHistory, row * MAX_SCOPES, MAX_SCOPES);
+        Arrays.fill(gpuHistory, row * MAX_SCOPES, (row + 1) * MAX_SCOPES, -1);
+        Arrays.fill(frameCpu, 0);
+
+        int slot = (int) (frame % FRAME_LATENCY);
+        queryFrame[slot] = frame;
+
+        frame++;
+        recorded = Math.min(recorded + 1, HISTORY_SIZE);
+
+        // The slot the next frame will reuse holds the queries issued FRAME_LATENCY frames before it
+        collect((int) (frame % FRAME_LATENCY));
+    }
+
+    public static Summary summarize(int scope)
+    {
+        int count = (int) recorded;
+        long[] cpu = new long[count];
+        long[] gpu = new long[count];
+        int gpuCount = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            cpu[i] = cpuHistory[i * MAX_SCOPES + scope];
+
+            long gpuTime = gpuHistory[i * MAX_SCOPES + scope];
+            if (gpuTime >= 0)
+            {
+                gpu[gpuCount++] = gpuTime;
+            }
+        }
+
+        Arrays.sort(cpu);
+        Arrays.sort(gpu, 0, gpuCount);
+
+        return new Summary(names.get(scope),
+                percentile(cpu, count, 0.5), percentile(cpu, count, 0.99), percentile(cpu, count, 1),
+                percentile(gpu, gpuCount, 0.5), percentile(gpu, gpuCount, 0.99), percentile(gpu, gpuCount, 1));
+    }
+
+    public static List<Summary> summarize()
+    {
+        List<Summary> summaries = new ArrayList<>();
+        for (int scope = 0; scope < names.size(); scope++)
+        {
+            summaries.add(summarize(scope));
+        }
+
+        return summaries;
+    }
+
+    // Writes one CSV row per recorded frame, oldest first, with a cpu and gpu column in
+    // milliseconds for every scope. Missing GPU times are left empty
+    public static void dump(Path file) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(file))
+        {
+            writer.write("frame");
+            for (String name : names)
+            {
+                writer.write("," + name + ".cpu," + name + ".gpu");
+            }
+            writer.newLine();
+
+            long first = frame - recorded;
+            for (long f = first; f < frame; f++)
+            {
+                int row = (int) (f % HISTORY_SIZE);
+                writer.write(Long.toString(frameNumbers[row]));
+
+                for (int scope = 0; scope < names.size(); scope++)
+                {
+                    long gpuTime = gpuHistory[row * MAX_SCOPES + scope];
+                    writer.write(String.format(",%.4f,", cpuHistory[row * MAX_SCOPES + scope] / 1_000_000.0));
+                    if (gpuTime >= 0)
+                    {
+                        writer.write(String.format("%.4f", gpuTime / 1_000_000.0));
+                    }
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void collect(int slot)
+    {
+        int count = queryCount[slot];
+        queryCount[slot] = 0;
+        if (!gpuTiming || count == 0)
+        {
+            return;
+        }
+
+        long queryFrameNumber = queryFrame[slot];
+        if (frame - queryFrameNumber > HISTORY_SIZE)
+        {
+            return;
+        }
+
+        // Queries complete in the order they were issued, so if the last one issued is done they
+        // all are. That is not the last entry's end when scopes nest, an outer scope ends after
+        // its inner ones. If it isn't done the frame's GPU times are dropped rather than waited for
+        int[] pool = queries[slot];
+        if (glGetQueryObjecti(pool[lastQuery[slot]], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE)
+        {
+            return;
+        }
+
+        int row = (int) (queryFrameNumber % HISTORY_SIZE);
+        for (int i = 0; i < count; i++)
+        {
+            long start = glGetQueryObjecti64(pool[i * 2], GL_QUERY_RESULT);
+            long end = glGetQueryObjecti64(pool[i * 2 + 1], GL_QUERY_RESULT);
+
+            int index = row * MAX_SCOPES + queryScopes[slot][i];
+            gpuHistory[index] = Math.max(0, gpuHistory[index]) + (end - start);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            int scope = queryScopes[slot][i];
+            latestGpu[scope] = gpuHistory[row * MAX_SCOPES + scope];
+        }
+    }
+
+    private static double percentile(long[] sorted, int count, double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1_000_000.0;
+    }
+}
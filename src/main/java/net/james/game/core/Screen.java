@@ -1,33 +1,59 @@
 package net.james.game.core;
 
+import net.james.game.rendering.GlState;
+import net.james.game.rendering.Texture;
+import net.james.game.rendering.TextureManager;
 import org.joml.Vector4f;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Configuration;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.Platform;
 
 import java.nio.IntBuffer;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
-import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
 public class Screen
 {
+    private static final int PROFILE_DRAW = Profiler.scope("screen.draw");
+    private static final int PROFILE_SWAP = Profiler.scope("screen.swap");
+    private static final int PROFILE_POLL = Profiler.scope("screen.poll");
+
     private long window;
     private final int width;
     private final int height;
     private final String title;
     private final Color clearColor;
 
+    // Headless screens render into framebuffer instead of a window's back buffer
+    private final boolean headless;
+    private int framebuffer;
+    private int colorRenderbuffer;
+    private int depthRenderbuffer;
+
+    private FrameReadback readback;
+    private DynamicResolution resolution;
+    private Config.EVsync vsync = Config.EVsync.ON;
+    private long frame;
+
     public Screen(int w, int h, String title, Color clearColor)
+    {
+        this(w, h, title, clearColor, false);
+    }
+
+    public Screen(int w, int h, String title, Color clearColor, boolean headless)
     {
         this.width = w;
         this.height = h;
         this.title = title;
         this.clearColor = clearColor;
+        this.headless = headless;
 
         this.window = 0;
     }
@@ -37,6 +63,15 @@ public class Screen
         // Set up an error callback
         GLFWErrorCallback.createPrint(System.err).set();
 
+        // Without a display server fall back to GLFW's null platform with a Mesa software context
+        boolean offscreen = this.headless && Platform.get() == Platform.LINUX
+                && System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
+        if (offscreen)
+        {
+            glfwInitHint(GLFW_PLATFORM, GLFW_PLATFORM_NULL);
+            Configuration.OPENGL_CONTEXT_API.set("OSMesa");
+        }
+
         // Initialize GLFW
         if (!glfwInit())
         {
@@ -46,7 +81,11 @@ public class Screen
         // Configure GLFW
         glfwDefaultWindowHints();
         glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
-        glfwWindowHint(GLFW_RESIZABLE, GLFW_TRUE);
+        glfwWindowHint(GLFW_RESIZABLE, this.headless ? GLFW_FALSE : GLFW_TRUE);
+        if (offscreen)
+        {
+            glfwWindowHint(GLFW_CONTEXT_CREATION_API, GLFW_OSMESA_CONTEXT_API);
+        }
 
         // Create the window
         this.window = glfwCreateWindow(this.width, this.height, this.title, NULL, NULL);
@@ -55,6 +94,12 @@ public class Screen
             throw new RuntimeException("Failed to create the GLFW window");
         }
 
+        if (this.headless)
+        {
+            openHeadless();
+            return;
+        }
+
         // Get the thread stack and push a new frame
         try (MemoryStack stack = stackPush())
         {
@@ -81,8 +126,7 @@ public class Screen
 
         // Make the OpenGL context current
         glfwMakeContextCurrent(window);
-        // Enable v-sync
-        glfwSwapInterval(1);
+        applyVsync();
 
         // Make the window visible
         glfwShowWindow(window);
@@ -90,14 +134,154 @@ public class Screen
         // This line is critical for LWJGL's interoperation with GLFW's
         // OpenGL context, or any context that is managed externally.
         GL.createCapabilities();
+        GlState.invalidate();
 
         // Set the clear color
         Vector4f glColor = clearColor.toVec4();
         glClearColor(glColor.x, glColor.y, glColor.z, glColor.w);
     }
 
+    // The window never shows, frames go to a fixed size framebuffer and are only limited by how fast they render
+    private void openHeadless()
+    {
+        glfwMakeContextCurrent(this.window);
+        glfwSwapInterval(0);
+        GL.createCapabilities();
+        GlState.invalidate();
+
+        this.colorRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, this.colorRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, this.width, this.height);
+
+        this.depthRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, this.depthRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH24_STENCIL8, this.width, this.height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        this.framebuffer = glGenFramebuffers();
+        GlState.bindFramebuffer(this.framebuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, this.colorRenderbuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, this.depthRenderbuffer);
+
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
+        {
+            throw new RuntimeException("Headless framebuffer is incomplete");
+        }
+
+        glViewport(0, 0, this.width, this.height);
+
+        Vector4f glColor = clearColor.toVec4();
+        glClearColor(glColor.x, glColor.y, glColor.z, glColor.w);
+    }
+
+    // Every following frame is copied back and handed to consumer once the GPU is done with it.
+    // Pass null to stop. Must be called on the GL thread after open
+    public void setFrameConsumer(FrameReadback.Consumer consumer)
+    {
+        if (this.readback != null)
+        {
+            this.readback.finish();
+            this.readback.destroy();
+            this.readback = null;
+        }
+
+        if (consumer != null)
+        {
+            this.readback = new FrameReadback(this.width, this.height, consumer);
+        }
+    }
+
+    // Takes effect straight away once the window is open
+    public void setVsync(Config.EVsync vsync)
+    {
+        this.vsync = vsync;
+        if (this.window != NULL && !this.headless)
+        {
+            applyVsync();
+        }
+    }
+
+    public Config.EVsync getVsync()
+    {
+        return this.vsync;
+    }
+
+    // Draws every following frame through resolution, null renders at full size again. The
+    // screen owns it from here and destroys it when replaced or closed
+    public void setDynamicResolution(DynamicResolution resolution)
+    {
+        if (this.resolution != null && this.resolution != resolution)
+        {
+            this.resolution.destroy();
+        }
+
+        this.resolution = resolution;
+    }
+
+    public DynamicResolution getDynamicResolution()
+    {
+        return this.resolution;
+    }
+
+    public FrameReadback getFrameReadback()
+    {
+        return this.readback;
+    }
+
+    public boolean isHeadless()
+    {
+        return this.headless;
+    }
+
+    // The framebuffer frames are drawn into, 0 for the window's own
+    public int getFramebuffer()
+    {
+        return this.framebuffer;
+    }
+
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    public long getFrame()
+    {
+        return this.frame;
+    }
+
+    public void setShouldClose(boolean shouldClose)
+    {
+        glfwSetWindowShouldClose(this.window, shouldClose);
+    }
+
     public void close()
     {
+        if (this.readback != null)
+        {
+            this.readback.finish();
+            this.readback.destroy();
+            this.readback = null;
+        }
+
+        if (this.resolution != null)
+        {
+            this.resolution.destroy();
+            this.resolution = null;
+        }
+
+        if (this.framebuffer != 0)
+        {
+            GlState.deleteFramebuffer(this.framebuffer);
+            glDeleteRenderbuffers(this.colorRenderbuffer);
+            glDeleteRenderbuffers(this.depthRenderbuffer);
+            this.framebuffer = 0;
+        }
+
         // Free the window callbacks and destroy the window
         glfwFreeCallbacks(window);
         glfwDestroyWindow(window);
@@ -109,12 +293,82 @@ public class Screen
 
     public void newFrame()
     {
+        newFrame(null);
+    }
+
+    public void newFrame(Runnable draw)
+    {
+        GlState.bindFramebuffer(this.framebuffer);
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-        glfwSwapBuffers(this.window);
+        if (draw != null)
+        {
+            Profiler.begin(PROFILE_DRAW);
+            if (this.resolution != null)
+            {
+                int width = this.width, height = this.height;
+                if (!this.headless)
+                {
+                    try (MemoryStack stack = stackPush())
+                    {
+                        IntBuffer pWidth = stack.mallocInt(1), pHeight = stack.mallocInt(1);
+                        glfwGetFramebufferSize(this.window, pWidth, pHeight);
+                        width = pWidth.get(0);
+                        height = pHeight.get(0);
+                    }
+                }
+
+                this.resolution.begin(width, height);
+                draw.run();
+                this.resolution.end(this.framebuffer);
+            }
+            else
+            {
+                draw.run();
+            }
+            Profiler.end();
+        }
+
+        if (this.readback != null)
+        {
+            GlState.bindFramebuffer(this.framebuffer);
+            this.readback.capture(this.frame);
+        }
+
+        if (!this.headless)
+        {
+            Profiler.begin(PROFILE_SWAP);
+            glfwSwapBuffers(this.window);
+            Profiler.end();
+        }
 
         // Poll for window events
+        Profiler.begin(PROFILE_POLL);
         glfwPollEvents();
+        Profiler.end();
+
+        Profiler.newFrame();
+        GlState.newFrame();
+
+        TextureManager textures = Texture.getManager();
+        if (textures != null)
+        {
+            textures.newFrame();
+        }
+
+        this.frame++;
+    }
+
+    private void applyVsync()
+    {
+        Config.EVsync vsync = this.vsync;
+        if (vsync == Config.EVsync.ADAPTIVE
+                && !glfwExtensionSupported("WGL_EXT_swap_control_tear") && !glfwExtensionSupported("GLX_EXT_swap_control_tear"))
+        {
+            vsync = Config.EVsync.ON;
+        }
+
+        glfwSwapInterval(vsync.interval);
     }
 
     public boolean shouldClose()
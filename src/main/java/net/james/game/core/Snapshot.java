@@ -0,0 +1,8 @@
+package net.james.game.core;
+
+// Game state that can be copied into a second instance, so the simulation can publish
+// a frozen copy while it carries on updating its own
+public interface Snapshot<T extends Snapshot<T>>
+{
+    void copyFrom(T other);
+}
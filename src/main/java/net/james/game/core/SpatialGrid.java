@@ -0,0 +1,457 @@
+package net.james.game.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Uniform grid hash over world space bounds, for finding what overlaps the camera before it is
+// submitted. Objects are stored in every cell their bounds touch and only the occupied cells
+// exist, in an open addressed table keyed by cell coordinates, so the world can be any size.
+// insert hands out an int handle to move and remove the object with. A move that stays in the
+// same cells only updates the bounds. Pick a cell size around the size of a typical object:
+// much smaller and large objects land in many cells, much larger and queries test more
+// objects than they return. Rotated sprites need bounds that cover every rotation.
+// Not thread safe
+public class SpatialGrid<T>
+{
+    private static final int INITIAL_OBJECTS = 256;
+    private static final int INITIAL_CELLS = 256;
+    private static final int INITIAL_CELL_SIZE = 4;
+
+    private final float cellSize;
+    private final float inverseCellSize;
+
+    // Objects by handle, free handles are chained through next
+    private Object[] objects;
+    private float[] minX, minY, maxX, maxY;
+    private int[] cellX0, cellY0, cellX1, cellY1;
+    private int[] queryMark;
+    private int[] frameMark;
+    private int[] nextFree;
+    private int freeHead = -1;
+    private int handleCount;
+    private int size;
+
+    // Open addressed cell table with linear probing. A cell is removed once its last object
+    // leaves, and later entries are shifted back into the gap, so lookups never meet a tombstone
+    private long[] cellKeys;
+    private int[][] cellItems;
+    private int[] cellSizes;
+    private boolean[] cellUsed;
+    private int cellCount;
+
+    private int queryId;
+    private int frameId = 1;
+
+    // Objects returned this frame, each counted once however many queries returned it
+    private int visible;
+    private int lastVisible;
+    private int lastCulled;
+
+    public SpatialGrid(float cellSize)
+    {
+        if (cellSize <= 0)
+        {
+            throw new IllegalArgumentException("Cell size must be positive.");
+        }
+
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1 / cellSize;
+
+        allocateObjects(INITIAL_OBJECTS);
+        allocateCells(INITIAL_CELLS);
+    }
+
+    public int insert(T object, Rectangle bounds)
+    {
+        return insert(object, bounds.x(), bounds.y(), bounds.width(), bounds.height());
+    }
+
+    public int insert(T object, float x, float y, float w, float h)
+    {
+        int handle;
+        if (this.freeHead != -1)
+        {
+            handle = this.freeHead;
+            this.freeHead = this.nextFree[handle];
+        }
+        else
+        {
+            if (this.handleCount == this.objects.length)
+            {
+                allocateObjects(this.objects.length * 2);
+            }
+
+            handle = this.handleCount++;
+        }
+
+        this.objects[handle] = object;
+        this.nextFree[handle] = -2;
+        this.frameMark[handle] = 0;
+        this.size++;
+
+        setBounds(handle, x, y, w, h);
+        this.cellX0[handle] = cell(x);
+        this.cellY0[handle] = cell(y);
+        this.cellX1[handle] = cell(x + w);
+        this.cellY1[handle] = cell(y + h);
+        addToCells(handle);
+
+        return handle;
+    }
+
+    public void move(int handle, Rectangle bounds)
+    {
+        move(handle, bounds.x(), bounds.y(), bounds.width(), bounds.height());
+    }
+
+    public void move(int handle, float x, float y, float w, float h)
+    {
+        checkHandle(handle);
+        setBounds(handle, x, y, w, h);
+
+        int x0 = cell(x), y0 = cell(y), x1 = cell(x + w), y1 = cell(y + h);
+        if (x0 == this.cellX0[handle] && y0 == this.cellY0[handle] && x1 == this.cellX1[handle] && y1 == this.cellY1[handle])
+        {
+            return;
+        }
+
+        removeFromCells(handle);
+        this.cellX0[handle] = x0;
+        this.cellY0[handle] = y0;
+        this.cellX1[handle] = x1;
+        this.cellY1[handle] = y1;
+        addToCells(handle);
+    }
+
+    public void remove(int handle)
+    {
+        checkHandle(handle);
+        removeFromCells(handle);
+
+        if (this.frameMark[handle] == this.frameId)
+        {
+            this.visible--;
+        }
+
+        this.objects[handle] = null;
+        this.nextFree[handle] = this.freeHead;
+        this.freeHead = handle;
+        this.size--;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int handle)
+    {
+        checkHandle(handle);
+        return (T) this.objects[handle];
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public int query(Rectangle area, List<? super T> out)
+    {
+        return query(area.x(), area.y(), area.width(), area.height(), out);
+    }
+
+    // Adds every object whose bounds overlap the area to out, each once, in no particular
+    // order, and returns how many were added
+    @SuppressWarnings("unchecked")
+    public int query(float x, float y, float w, float h, List<? super T> out)
+    {
+        float right = x + w, top = y + h;
+        int x0 = cell(x), y0 = cell(y), x1 = cell(right), y1 = cell(top);
+
+        // Objects in several cells are only tested once, the mark remembers the last query that saw them
+        int mark = ++this.queryId;
+        if (mark == 0)
+        {
+            Arrays.fill(this.queryMark, 0);
+            mark = this.queryId = 1;
+        }
+
+        int found = 0;
+        for (int cy = y0; cy <= y1; cy++)
+        {
+            for (int cx = x0; cx <= x1; cx++)
+            {
+                int cell = findCell(key(cx, cy));
+                if (cell < 0)
+                {
+                    continue;
+                }
+
+                int[] items = this.cellItems[cell];
+                int count = this.cellSizes[cell];
+                for (int i = 0; i < count; i++)
+                {
+                    int handle = items[i];
+                    if (this.queryMark[handle] == mark)
+                    {
+                        continue;
+                    }
+
+                    this.queryMark[handle] = mark;
+                    if (this.minX[handle] <= right && this.maxX[handle] >= x && this.minY[handle] <= top && this.maxY[handle] >= y)
+                    {
+                        out.add((T) this.objects[handle]);
+                        found++;
+
+                        if (this.frameMark[handle] != this.frameId)
+                        {
+                            this.frameMark[handle] = this.frameId;
+                            this.visible++;
+                        }
+                    }
+                }
+            }
+        }
+
+        return found;
+    }
+
+    // Latches the visible and culled counts of the queries made since the last call, call it once a frame
+    public void newFrame()
+    {
+        this.lastVisible = this.visible;
+        this.lastCulled = this.size - this.visible;
+        this.visible = 0;
+
+        if (++this.frameId == 0)
+        {
+            Arrays.fill(this.frameMark, 0);
+            this.frameId = 1;
+        }
+    }
+
+    // Objects returned by any of last frame's queries, each once
+    public int getVisible()
+    {
+        return this.lastVisible;
+    }
+
+    // Objects none of last frame's queries returned
+    public int getCulled()
+    {
+        return this.lastCulled;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(this.objects, 0, this.handleCount, null);
+        Arrays.fill(this.cellItems, null);
+        Arrays.fill(this.cellSizes, 0);
+        Arrays.fill(this.cellUsed, false);
+        this.cellCount = 0;
+        this.freeHead = -1;
+        this.handleCount = 0;
+        this.size = 0;
+        this.visible = 0;
+    }
+
+    private void setBounds(int handle, float x, float y, float w, float h)
+    {
+        this.minX[handle] = x;
+        this.minY[handle] = y;
+        this.maxX[handle] = x + w;
+        this.maxY[handle] = y + h;
+    }
+
+    private void addToCells(int handle)
+    {
+        for (int cy = this.cellY0[handle]; cy <= this.cellY1[handle]; cy++)
+        {
+            for (int cx = this.cellX0[handle]; cx <= this.cellX1[handle]; cx++)
+            {
+                int cell = getOrCreateCell(key(cx, cy));
+                int count = this.cellSizes[cell];
+                if (count == this.cellItems[cell].length)
+                {
+                    this.cellItems[cell] = Arrays.copyOf(this.cellItems[cell], count * 2);
+                }
+
+                this.cellItems[cell][count] = handle;
+                this.cellSizes[cell] = count + 1;
+            }
+        }
+    }
+
+    private void removeFromCells(int handle)
+    {
+        for (int cy = this.cellY0[handle]; cy <= this.cellY1[handle]; cy++)
+        {
+            for (int cx = this.cellX0[handle]; cx <= this.cellX1[handle]; cx++)
+            {
+                int cell = findCell(key(cx, cy));
+                int[] items = this.cellItems[cell];
+                int last = --this.cellSizes[cell];
+
+                for (int i = 0; i <= last; i++)
+                {
+                    if (items[i] == handle)
+                    {
+                        items[i] = items[last];
+                        break;
+                    }
+                }
+
+                if (last == 0)
+                {
+                    removeCell(cell);
+                }
+            }
+        }
+    }
+
+    private int cell(float coordinate)
+    {
+        return (int) Math.floor(coordinate * this.inverseCellSize);
+    }
+
+    private static long key(int cx, int cy)
+    {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private int slot(long key)
+    {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & (this.cellKeys.length - 1);
+    }
+
+    private int findCell(long key)
+    {
+        int mask = this.cellKeys.length - 1;
+        for (int slot = slot(key); this.cellUsed[slot]; slot = (slot + 1) & mask)
+        {
+            if (this.cellKeys[slot] == key)
+            {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private int getOrCreateCell(long key)
+    {
+        int cell = findCell(key);
+        if (cell >= 0)
+        {
+            return cell;
+        }
+
+        // Keep the table at most half full
+        if ((this.cellCount + 1) * 2 > this.cellKeys.length)
+        {
+            allocateCells(this.cellKeys.length * 2);
+        }
+
+        int mask = this.cellKeys.length - 1;
+        int slot = slot(key);
+        while (this.cellUsed[slot])
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        this.cellUsed[slot] = true;
+        this.cellKeys[slot] = key;
+        this.cellItems[slot] = new int[INITIAL_CELL_SIZE];
+        this.cellSizes[slot] = 0;
+        this.cellCount++;
+        return slot;
+    }
+
+    // Backward shift deletion: walks the probe run after the gap and moves back every entry
+    // whose home slot doesn't lie between the gap and where it sits
+    private void removeCell(int cell)
+    {
+        int mask = this.cellKeys.length - 1;
+        int gap = cell;
+        this.cellUsed[gap] = false;
+        this.cellItems[gap] = null;
+        this.cellCount--;
+
+        for (int slot = (gap + 1) & mask; this.cellUsed[slot]; slot = (slot + 1) & mask)
+        {
+            int home = slot(this.cellKeys[slot]);
+            if (((slot - home) & mask) < ((slot - gap) & mask))
+            {
+                continue;
+            }
+
+            this.cellUsed[gap] = true;
+            this.cellKeys[gap] = this.cellKeys[slot];
+            this.cellItems[gap] = this.cellItems[slot];
+            this.cellSizes[gap] = this.cellSizes[slot];
+
+            this.cellUsed[slot] = false;
+            this.cellItems[slot] = null;
+            gap = slot;
+        }
+    }
+
+    private void allocateCells(int capacity)
+    {
+        long[] keys = this.cellKeys;
+        int[][] items = this.cellItems;
+        int[] sizes = this.cellSizes;
+        boolean[] used = this.cellUsed;
+
+        this.cellKeys = new long[capacity];
+        this.cellItems = new int[capacity][];
+        this.cellSizes = new int[capacity];
+        this.cellUsed = new boolean[capacity];
+
+        if (keys == null)
+        {
+            return;
+        }
+
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (!used[i])
+            {
+                continue;
+            }
+
+            int slot = slot(keys[i]);
+            while (this.cellUsed[slot])
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            this.cellUsed[slot] = true;
+            this.cellKeys[slot] = keys[i];
+            this.cellItems[slot] = items[i];
+            this.cellSizes[slot] = sizes[i];
+        }
+    }
+
+    private void allocateObjects(int capacity)
+    {
+        this.objects = this.objects == null ? new Object[capacity] : Arrays.copyOf(this.objects, capacity);
+        this.minX = this.minX == null ? new float[capacity] : Arrays.copyOf(this.minX, capacity);
+        this.minY = this.minY == null ? new float[capacity] : Arrays.copyOf(this.minY, capacity);
+        this.maxX = this.maxX == null ? new float[capacity] : Arrays.copyOf(this.maxX, capacity);
+        this.maxY = this.maxY == null ? new float[capacity] : Arrays.copyOf(this.maxY, capacity);
+        this.cellX0 = this.cellX0 == null ? new int[capacity] : Arrays.copyOf(this.cellX0, capacity);
+        this.cellY0 = this.cellY0 == null ? new int[capacity] : Arrays.copyOf(this.cellY0, capacity);
+        this.cellX1 = this.cellX1 == null ? new int[capacity] : Arrays.copyOf(this.cellX1, capacity);
+        this.cellY1 = this.cellY1 == null ? new int[capacity] : Arrays.copyOf(this.cellY1, capacity);
+        this.queryMark = this.queryMark == null ? new int[capacity] : Arrays.copyOf(this.queryMark, capacity);
+        this.frameMark = this.frameMark == null ? new int[capacity] : Arrays.copyOf(this.frameMark, capacity);
+        this.nextFree = this.nextFree == null ? new int[capacity] : Arrays.copyOf(this.nextFree, capacity);
+    }
+
+    private void checkHandle(int handle)
+    {
+        if (handle < 0 || handle >= this.handleCount || this.nextFree[handle] != -2)
+        {
+            throw new IllegalArgumentException("Invalid spatial grid handle " + handle + ".");
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package net.james.game.rendering;
+
+import net.james.game.core.AssetArchive;
+import org.lwjgl.stb.STBTTFontinfo;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lwjgl.stb.STBTruetype.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// A TrueType font at one pixel size. Glyphs are rasterized with stb_truetype the first time
+// they are drawn into a single channel atlas, which the standard shader samples as a font
+// texture. The atlas is a grid of cells as big as the font's bounding box, so any glyph fits
+// any cell, and when it is full the least recently drawn glyph gives up its cell. A glyph
+// drawn in the current frame is never evicted, if a frame needs more glyphs than there are
+// cells the extra ones are dropped and counted in getOverflows. GL thread only
+public class Font
+{
+    private static final int DEFAULT_ATLAS_SIZE = 512;
+    private static final int PADDING = 1;
+    private static final int RUN_CACHE_SIZE = 256;
+    private static final int ADVANCE_TABLE_SIZE = 256;
+
+    private static final int EMPTY = -1;
+
+    // stb_truetype reads the font data in place, it has to live as long as the font. Set when the
+    // data came from an asset archive, which may hand out its own mapping
+    private ByteBuffer data;
+    private final AssetArchive archive;
+    private final STBTTFontinfo info;
+
+    private final float scale;
+    private final float ascent;
+    private final float descent;
+    private final float lineGap;
+    private final float[] advances = new float[ADVANCE_TABLE_SIZE];
+
+    private final Texture atlas;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int columns;
+    private ByteBuffer bitmap;
+
+    // Per atlas cell: the glyph in it and where to put the glyph relative to the pen
+    private final int[] slotCodepoint;
+    private final int[] slotWidth;
+    private final int[] slotHeight;
+    private final int[] slotOffsetX;
+    private final int[] slotOffsetY;
+    final float[] slotU, slotV, slotUW, slotVH;
+
+    // Cells as a doubly linked list, most recently drawn first
+    private final int[] slotFrame;
+    private final int[] prev;
+    private final int[] next;
+    private int head = EMPTY;
+    private int tail = EMPTY;
+    private int used;
+
+    // Codepoint to cell, open addressed with linear probing
+    private final int[] mapKeys;
+    private final int[] mapSlots;
+
+    private final Map<String, TextRun> runs = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TextRun> eldest)
+        {
+            return size() > RUN_CACHE_SIZE;
+        }
+    };
+
+    private int rasterized;
+    private int evictions;
+    private int overflows;
+
+    public Font(String fileName, float pixelHeight)
+    {
+        this(fileName, pixelHeight, DEFAULT_ATLAS_SIZE);
+    }
+
+    public Font(String fileName, float pixelHeight, int atlasSize) throws RuntimeException
+    {
+        AssetArchive archive = AssetArchive.getMounted();
+        ByteBuffer packed = archive != null ? archive.get(fileName) : null;
+        this.archive = packed != null ? archive : null;
+        this.data = packed != null ? packed : read(fileName);
+        this.info = STBTTFontinfo.malloc();
+
+        if (!stbtt_InitFont(this.info, this.data))
+        {
+            this.info.free();
+            freeData();
+            throw new RuntimeException("Font " + fileName + " could not be parsed");
+        }
+
+        this.scale = stbtt_ScaleForPixelHeight(this.info, pixelHeight);
+
+        int boxWidth, boxHeight;
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer a = stack.mallocInt(1), b = stack.mallocInt(1), c = stack.mallocInt(1), d = stack.mallocInt(1);
+
+            stbtt_GetFontVMetrics(this.info, a, b, c);
+            this.ascent = a.get(0) * this.scale;
+            this.descent = b.get(0) * this.scale;
+            this.lineGap = c.get(0) * this.scale;
+
+            stbtt_GetFontBoundingBox(this.info, a, b, c, d);
+            boxWidth = (int) Math.ceil((c.get(0) - a.get(0)) * this.scale) + 1;
+            boxHeight = (int) Math.ceil((d.get(0) - b.get(0)) * this.scale) + 1;
+
+            for (int i = 0; i < ADVANCE_TABLE_SIZE; i++)
+            {
+                stbtt_GetCodepointHMetrics(this.info, i, a, b);
+                this.advances[i] = a.get(0) * this.scale;
+            }
+        }
+
+        this.cellWidth = boxWidth + PADDING;
+        this.cellHeight = boxHeight + PADDING;
+        this.columns = atlasSize / this.cellWidth;
+        int rows = atlasSize / this.cellHeight;
+        int slots = this.columns * rows;
+
+        if (slots == 0)
+        {
+            destroy();
+            throw new IllegalArgumentException("A " + atlasSize + " pixel atlas can't hold a " + pixelHeight + " pixel glyph");
+        }
+
+        this.atlas = new Texture(atlasSize, atlasSize, Texture.ETextureFormat.R, null);
+        this.bitmap = memAlloc(boxWidth * boxHeight);
+
+        this.slotCodepoint = new int[slots];
+        this.slotWidth = new int[slots];
+        this.slotHeight = new int[slots];
+        this.slotOffsetX = new int[slots];
+        this.slotOffsetY = new int[slots];
+        this.slotU = new float[slots];
+        this.slotV = new float[slots];
+        this.slotUW = new float[slots];
+        this.slotVH = new float[slots];
+        this.slotFrame = new int[slots];
+        this.prev = new int[slots];
+        this.next = new int[slots];
+        Arrays.fill(this.slotCodepoint, EMPTY);
+        Arrays.fill(this.slotFrame, -1);
+
+        int mapSize = Integer.highestOneBit(slots * 2 - 1) << 1;
+        this.mapKeys = new int[mapSize];
+        this.mapSlots = new int[mapSize];
+        Arrays.fill(this.mapKeys, EMPTY);
+    }
+
+    public float getAscent()
+    {
+        return this.ascent;
+    }
+
+    public float getDescent()
+    {
+        return this.descent;
+    }
+
+    public float getLineHeight()
+    {
+        return this.ascent - this.descent + this.lineGap;
+    }
+
+    public Texture getAtlas()
+    {
+        return this.atlas;
+    }
+
+    // The cached layout of text, laid out on first use. For text that changes every frame
+    // keep a TextRun of your own and set it instead, so no String has to be built
+    public TextRun getRun(String text)
+    {
+        TextRun run = this.runs.get(text);
+        if (run == null)
+        {
+            run = new TextRun(this);
+            run.set(text);
+            this.runs.put(text, run);
+        }
+
+        return run;
+    }
+
+    public int getRasterized()
+    {
+        return this.rasterized;
+    }
+
+    public int getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public int getOverflows()
+    {
+        return this.overflows;
+    }
+
+    public void destroy()
+    {
+        if (this.atlas != null)
+        {
+            this.atlas.destroy();
+        }
+
+        if (this.bitmap != null)
+        {
+            memFree(this.bitmap);
+            this.bitmap = null;
+        }
+
+        if (this.data != null)
+        {
+            this.info.free();
+            freeData();
+            this.data = null;
+        }
+
+        this.runs.clear();
+    }
+
+    float advance(int codepoint)
+    {
+        if (codepoint < ADVANCE_TABLE_SIZE)
+        {
+            return this.advances[codepoint];
+        }
+
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer advance = stack.mallocInt(1), bearing = stack.mallocInt(1);
+            stbtt_GetCodepointHMetrics(this.info, codepoint, advance, bearing);
+            return advance.get(0) * this.scale;
+        }
+    }
+
+    float kerning(int previous, int codepoint)
+    {
+        return stbtt_GetCodepointKernAdvance(this.info, previous, codepoint) * this.scale;
+    }
+
+    // The cell holding codepoint, rasterizing it if needed, or -1 if every cell is in use this frame
+    int glyph(int codepoint, int frame)
+    {
+        int slot = find(codepoint);
+        if (slot != EMPTY)
+        {
+            unlink(slot);
+        }
+        else
+        {
+            slot = rasterize(codepoint, frame);
+            if (slot == EMPTY)
+            {
+                return EMPTY;
+            }
+        }
+
+        this.slotFrame[slot] = frame;
+        pushFront(slot);
+        return slot;
+    }
+
+    boolean isBlank(int slot)
+    {
+        return this.slotWidth[slot] == 0;
+    }
+
+    int getWidth(int slot)
+    {
+        return this.slotWidth[slot];
+    }
+
+    int getHeight(int slot)
+    {
+        return this.slotHeight[slot];
+    }
+
+    int getOffsetX(int slot)
+    {
+        return this.slotOffsetX[slot];
+    }
+
+    int getOffsetY(int slot)
+    {
+        return this.slotOffsetY[slot];
+    }
+
+    private int rasterize(int codepoint, int frame)
+    {
+        int slot;
+        if (this.used < this.slotCodepoint.length)
+        {
+            slot = this.used++;
+        }
+        else
+        {
+            slot = this.tail;
+            if (this.slotFrame[slot] == frame)
+            {
+                this.overflows++;
+                return EMPTY;
+            }
+
+            remove(this.slotCodepoint[slot]);
+            unlink(slot);
+            this.evictions++;
+        }
+
+        int x0, y0, x1, y1;
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer a = stack.mallocInt(1), b = stack.mallocInt(1), c = stack.mallocInt(1), d = stack.mallocInt(1);
+            stbtt_GetCodepointBitmapBox(this.info, codepoint, this.scale, this.scale, a, b, c, d);
+            x0 = a.get(0);
+            y0 = b.get(0);
+            x1 = c.get(0);
+            y1 = d.get(0);
+        }
+
+        int w = Math.min(x1 - x0, this.cellWidth - PADDING);
+        int h = Math.min(y1 - y0, this.cellHeight - PADDING);
+        int cellX = (slot % this.columns) * this.cellWidth;
+        int cellY = (slot / this.columns) * this.cellHeight;
+
+        if (w > 0 && h > 0)
+        {
+            this.bitmap.clear().limit(w * h);
+            stbtt_MakeCodepointBitmap(this.info, this.bitmap, w, h, w, this.scale, this.scale, codepoint);
+            this.atlas.update(cellX, cellY, w, h, this.bitmap);
+        }
+        else
+        {
+            w = 0;
+            h = 0;
+        }
+
+        // stb_truetype boxes are y down from the baseline, the renderer is y up
+        this.slotCodepoint[slot] = codepoint;
+        this.slotWidth[slot] = w;
+        this.slotHeight[slot] = h;
+        this.slotOffsetX[slot] = x0;
+        this.slotOffsetY[slot] = -y1;
+        this.slotU[slot] = (float) cellX / this.atlas.width;
+        this.slotV[slot] = (float) cellY / this.atlas.height;
+        this.slotUW[slot] = (float) w / this.atlas.width;
+        this.slotVH[slot] = (float) h / this.atlas.height;
+
+        put(codepoint, slot);
+        this.rasterized++;
+        return slot;
+    }
+
+    private void pushFront(int slot)
+    {
+        this.prev[slot] = EMPTY;
+        this.next[slot] = this.head;
+        if (this.head != EMPTY)
+        {
+            this.prev[this.head] = slot;
+        }
+
+        this.head = slot;
+        if (this.tail == EMPTY)
+        {
+            this.tail = slot;
+        }
+    }
+
+    private void unlink(int slot)
+    {
+        int before = this.prev[slot], after = this.next[slot];
+        if (before != EMPTY)
+        {
+            this.next[before] = after;
+        }
+        else
+        {
+            this.head = after;
+        }
+
+        if (after != EMPTY)
+        {
+            this.prev[after] = before;
+        }
+        else
+        {
+            this.tail = before;
+        }
+
+    }
+
+    private int hash(int codepoint)
+    {
+        return (codepoint * 0x9e3779b9) >>> 16 & (this.mapKeys.length - 1);
+    }
+
+    private int find(int codepoint)
+    {
+        int mask = this.mapKeys.length - 1;
+        for (int i = hash(codepoint); this.mapKeys[i] != EMPTY; i = (i + 1) & mask)
+        {
+            if (this.mapKeys[i] == codepoint)
+            {
+                return this.mapSlots[i];
+            }
+        }
+
+        return EMPTY;
+    }
+
+    private void put(int codepoint, int slot)
+    {
+        int mask = this.mapKeys.length - 1;
+        int i = hash(codepoint);
+        while (this.mapKeys[i] != EMPTY)
+        {
+            i = (i + 1) & mask;
+        }
+
+        this.mapKeys[i] = codepoint;
+        this.mapSlots[i] = slot;
+    }
+
+    // Backward shift deletion, so lookups never need tombstones
+    private void remove(int codepoint)
+    {
+        int mask = this.mapKeys.length - 1;
+        int i = hash(codepoint);
+        while (this.mapKeys[i] != codepoint)
+        {
+            i = (i + 1) & mask;
+        }
+
+        int hole = i;
+        for (int j = (hole + 1) & mask; this.mapKeys[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = hash(this.mapKeys[j]);
+            // Move j back into the hole unless its home lies cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask))
+            {
+                this.mapKeys[hole] = this.mapKeys[j];
+                this.mapSlots[hole] = this.mapSlots[j];
+                hole = j;
+            }
+        }
+
+        this.mapKeys[hole] = EMPTY;
+    }
+
+    private void freeData()
+    {
+        if (this.archive != null)
+        {
+            this.archive.release(this.data);
+        }
+        else
+        {
+            memFree(this.data);
+        }
+    }
+
+    private static ByteBuffer read(String fileName) throws RuntimeException
+    {
+        try (InputStream inputStream = Font.class.getClassLoader().getResourceAsStream(fileName))
+        {
+            if (inputStream == null)
+            {
+                throw new RuntimeException("Font " + fileName + " not found");
+            }
+
+            byte[] bytes = inputStream.readAllBytes();
+            ByteBuffer data = memAlloc(bytes.length);
+            data.put(bytes).flip();
+            return data;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package net.james.game.rendering;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL31.*;
+
+// Shadows the GL state the renderer touches so calls that wouldn't change anything never reach
+// the driver. It never reads state back: everything starts out unknown, so the first call of
+// each kind always goes through, and invalidate() forgets everything again for when code outside
+// this class has changed state. Only valid for the context current on the GL thread, all
+// binds and deletes of the tracked objects have to go through here to keep it honest
+public final class GlState
+{
+    private static final int UNKNOWN = -1;
+    private static final int TEXTURE_UNITS = 32;
+
+    private static final int ARRAY_BUFFER = 0;
+    private static final int ELEMENT_ARRAY_BUFFER = 1;
+    private static final int COPY_READ_BUFFER = 2;
+    private static final int COPY_WRITE_BUFFER = 3;
+    private static final int PIXEL_PACK_BUFFER = 4;
+    private static final int PIXEL_UNPACK_BUFFER = 5;
+    private static final int UNIFORM_BUFFER = 6;
+    private static final int BUFFER_TARGETS = 7;
+
+    private static int program;
+    private static int vertexArray;
+    private static int framebuffer;
+    private static final int[] buffers = new int[BUFFER_TARGETS];
+
+    private static int activeTexture;
+    private static final int[] textures = new int[TEXTURE_UNITS];
+
+    private static int blend;
+    private static int blendSource;
+    private static int blendDestination;
+    private static int depthTest;
+    private static int depthFunc;
+    private static int depthMask;
+
+    private static int issued;
+    private static int skipped;
+    private static int lastIssued;
+    private static int lastSkipped;
+
+    static
+    {
+        invalidate();
+    }
+
+    private GlState()
+    {
+    }
+
+    // Call after creating a context or handing it to code that doesn't go through here
+    public static void invalidate()
+    {
+        program = UNKNOWN;
+        vertexArray = UNKNOWN;
+        framebuffer = UNKNOWN;
+        Arrays.fill(buffers, UNKNOWN);
+
+        activeTexture = UNKNOWN;
+        Arrays.fill(textures, UNKNOWN);
+
+        blend = UNKNOWN;
+        blendSource = UNKNOWN;
+        blendDestination = UNKNOWN;
+        depthTest = UNKNOWN;
+        depthFunc = UNKNOWN;
+        depthMask = UNKNOWN;
+    }
+
+    public static void useProgram(int handle)
+    {
+        if (program == handle)
+        {
+            skipped++;
+            return;
+        }
+
+        glUseProgram(handle);
+        program = handle;
+        issued++;
+    }
+
+    public static void bindVertexArray(int handle)
+    {
+        if (vertexArray == handle)
+        {
+            skipped++;
+            return;
+        }
+
+        glBindVertexArray(handle);
+        vertexArray = handle;
+        issued++;
+
+        // The element array binding belongs to the vertex array
+        buffers[ELEMENT_ARRAY_BUFFER] = UNKNOWN;
+    }
+
+    public static void bindFramebuffer(int handle)
+    {
+        if (framebuffer == handle)
+        {
+            skipped++;
+            return;
+        }
+
+        glBindFramebuffer(GL_FRAMEBUFFER, handle);
+        framebuffer = handle;
+        issued++;
+    }
+
+    public static void bindBuffer(int target, int handle)
+    {
+        int index = getBufferIndex(target);
+        if (index != UNKNOWN && buffers[index] == handle)
+        {
+            skipped++;
+            return;
+        }
+
+        glBindBuffer(target, handle);
+        if (index != UNKNOWN)
+        {
+            buffers[index] = handle;
+        }
+        issued++;
+    }
+
+    // Binds to the active unit, for uploads that don't care which unit they go through
+    public static void bindTexture(int handle)
+    {
+        if (activeTexture == UNKNOWN)
+        {
+            activeTexture(0);
+        }
+
+        bindTexture(activeTexture, handle);
+    }
+
+    public static void bindTexture(int unit, int handle)
+    {
+        boolean tracked = unit < TEXTURE_UNITS;
+        if (tracked && textures[unit] == handle)
+        {
+            skipped++;
+            return;
+        }
+
+        activeTexture(unit);
+        glBindTexture(GL_TEXTURE_2D, handle);
+        if (tracked)
+        {
+            textures[unit] = handle;
+        }
+        issued++;
+    }
+
+    // Selects the unit that bindTexture(handle) and texture uploads go through
+    public static void activeTexture(int unit)
+    {
+        if (activeTexture == unit)
+        {
+            return;
+        }
+
+        glActiveTexture(GL_TEXTURE0 + unit);
+        activeTexture = unit;
+        issued++;
+    }
+
+    public static void setBlend(boolean enabled)
+    {
+        blend = setCapability(GL_BLEND, blend, enabled);
+    }
+
+    public static void blendFunc(int source, int destination)
+    {
+        if (blendSource == source && blendDestination == destination)
+        {
+            skipped++;
+            return;
+        }
+
+        glBlendFunc(source, destination);
+        blendSource = source;
+        blendDestination = destination;
+        issued++;
+    }
+
+    public static void setDepthTest(boolean enabled)
+    {
+        depthTest = setCapability(GL_DEPTH_TEST, depthTest, enabled);
+    }
+
+    public static void depthFunc(int func)
+    {
+        if (depthFunc == func)
+        {
+            skipped++;
+            return;
+        }
+
+        glDepthFunc(func);
+        depthFunc = func;
+        issued++;
+    }
+
+    public static void depthMask(boolean enabled)
+    {
+        int value = enabled ? GL_TRUE : GL_FALSE;
+        if (depthMask == value)
+        {
+            skipped++;
+            return;
+        }
+
+        glDepthMask(enabled);
+        depthMask = value;
+        issued++;
+    }
+
+    // Deleting an object unbinds it everywhere, so the shadows have to follow
+    public static void deleteTexture(int handle)
+    {
+        glDeleteTextures(handle);
+        for (int i = 0; i < TEXTURE_UNITS; i++)
+        {
+            if (textures[i] == handle)
+            {
+                textures[i] = 0;
+            }
+        }
+    }
+
+    public static void deleteBuffer(int handle)
+    {
+        glDeleteBuffers(handle);
+        for (int i = 0; i < BUFFER_TARGETS; i++)
+        {
+            if (buffers[i] == handle)
+            {
+                buffers[i] = 0;
+            }
+        }
+    }
+
+    // A program that is in use is only flagged for deletion, so it is unbound first
+    public static void deleteProgram(int handle)
+    {
+        if (program == handle)
+        {
+            glUseProgram(0);
+            program = 0;
+        }
+
+        glDeleteProgram(handle);
+    }
+
+    public static void deleteVertexArray(int handle)
+    {
+        glDeleteVertexArrays(handle);
+        if (vertexArray == handle)
+        {
+            vertexArray = 0;
+            buffers[ELEMENT_ARRAY_BUFFER] = UNKNOWN;
+        }
+    }
+
+    public static void deleteFramebuffer(int handle)
+    {
+        glDeleteFramebuffers(handle);
+        if (framebuffer == handle)
+        {
+            framebuffer = 0;
+        }
+    }
+
+    // Latches this frame's counters, Screen calls it once per frame
+    public static void newFrame()
+    {
+        lastIssued = issued;
+        lastSkipped = skipped;
+        issued = 0;
+        skipped = 0;
+    }
+
+    // State changes that reached the driver last frame
+    public static int getIssued()
+    {
+        return lastIssued;
+    }
+
+    // State changes that were dropped as redundant last frame
+    public static int getSkipped()
+    {
+        return lastSkipped;
+    }
+
+    private static int setCapability(int capability, int current, boolean enabled)
+    {
+        int value = enabled ? GL_TRUE : GL_FALSE;
+        if (current == value)
+        {
+            skipped++;
+            return current;
+        }
+
+        if (enabled)
+        {
+            glEnable(capability);
+        }
+        else
+        {
+            glDisable(capability);
+        }
+        issued++;
+        return value;
+    }
+
+    private static int getBufferIndex(int target)
+    {
+        switch (target)
+        {
+            case GL_ARRAY_BUFFER:
+            {
+                return ARRAY_BUFFER;
+            }
+            case GL_ELEMENT_ARRAY_BUFFER:
+            {
+                return ELEMENT_ARRAY_BUFFER;
+            }
+            case GL_COPY_READ_BUFFER:
+            {
+                return COPY_READ_BUFFER;
+            }
+            case GL_COPY_WRITE_BUFFER:
+            {
+                return COPY_WRITE_BUFFER;
+            }
+            case GL_PIXEL_PACK_BUFFER:
+            {
+                return PIXEL_PACK_BUFFER;
+            }
+            case GL_PIXEL_UNPACK_BUFFER:
+            {
+                return PIXEL_UNPACK_BUFFER;
+            }
+            case GL_UNIFORM_BUFFER:
+            {
+                return UNIFORM_BUFFER;
+            }
+            default:
+            {
+                return UNKNOWN;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.james.game.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+// One record per sprite for instanced drawing, the vertex shader expands it into a quad.
+// Record layout: x, y, width, height | depth, rotation | u, v, uv width, uv height | rgba8 | slot
+public class InstanceBatch
+{
+    public static final int STRIDE = 12 * Float.BYTES;
+
+    public static final int RECT_OFFSET = 0;
+    public static final int TRANSFORM_OFFSET = 4 * Float.BYTES;
+    public static final int UV_OFFSET = 6 * Float.BYTES;
+    public static final int COLOR_OFFSET = 10 * Float.BYTES;
+    public static final int TEXTURE_OFFSET = 11 * Float.BYTES;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private long instances;
+    private int capacity;
+    private int count;
+
+    public InstanceBatch(int initialSprites)
+    {
+        if (initialSprites <= 0)
+        {
+            throw new IllegalArgumentException("Instance batch capacity must be positive.");
+        }
+
+        this.capacity = initialSprites;
+        this.instances = nmemAllocChecked((long) this.capacity * STRIDE);
+    }
+
+    public void clear()
+    {
+        this.count = 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.count == 0;
+    }
+
+    public int instanceCount()
+    {
+        return this.count;
+    }
+
+    // color is packed like Color, red in the top byte
+    public void add(float x, float y, float w, float h, float z, float rotation, int textureSlot, int color,
+                    float u, float v, float uw, float vh)
+    {
+        if (this.count == this.capacity)
+        {
+            this.capacity *= 2;
+            this.instances = nmemReallocChecked(this.instances, (long) this.capacity * STRIDE);
+        }
+
+        long instance = this.instances + (long) this.count++ * STRIDE;
+        memPutFloat(instance, x);
+        memPutFloat(instance + 4, y);
+        memPutFloat(instance + 8, w);
+        memPutFloat(instance + 12, h);
+        memPutFloat(instance + TRANSFORM_OFFSET, z);
+        memPutFloat(instance + TRANSFORM_OFFSET + 4, rotation);
+        memPutFloat(instance + UV_OFFSET, u);
+        memPutFloat(instance + UV_OFFSET + 4, v);
+        memPutFloat(instance + UV_OFFSET + 8, uw);
+        memPutFloat(instance + UV_OFFSET + 12, vh);
+        memPutInt(instance + COLOR_OFFSET, LITTLE_ENDIAN ? Integer.reverseBytes(color) : color);
+        memPutInt(instance + TEXTURE_OFFSET, textureSlot);
+    }
+
+    public ByteBuffer instances()
+    {
+        return memByteBuffer(this.instances, this.count * STRIDE);
+    }
+
+    public void destroy()
+    {
+        nmemFree(this.instances);
+
+        this.instances = NULL;
+        this.capacity = 0;
+        clear();
+    }
+}
@@ -0,0 +1,229 @@
+package net.james.game.rendering;
+
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL30C.*;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+// A model imported through the mesh cache, in one static vertex buffer and one index buffer.
+// Drawn with any shader that declares some of position, texCoord and normal, the vertex array
+// is pointed at the attributes of whichever shader drew it last
+public class Mesh
+{
+    private static final String[] ATTRIBUTES = { "position", "texCoord", "normal" };
+
+    private static MeshCache cache;
+
+    private final String fileName;
+
+    private int vao;
+    private int vertexBuffer;
+    private int indexBuffer;
+
+    private int vertexCount;
+    private int indexCount;
+    private int indexSize;
+    private int indexType;
+
+    private int[] submeshFirst;
+    private int[] submeshCount;
+    private int[] submeshMaterial;
+
+    private final Vector3f min = new Vector3f();
+    private final Vector3f max = new Vector3f();
+
+    private int configuredProgram;
+    private final int[] enabledAttributes = new int[ATTRIBUTES.length];
+    private int enabledCount;
+
+    // Meshes loaded after this is set come from the cache, null runs Assimp every time
+    public static void setCache(MeshCache cache)
+    {
+        Mesh.cache = cache;
+    }
+
+    public static MeshCache getCache()
+    {
+        return cache;
+    }
+
+    public Mesh(String fileName) throws RuntimeException
+    {
+        this.fileName = fileName;
+
+        if (cache != null)
+        {
+            cache.load(this, fileName);
+            return;
+        }
+
+        ByteBuffer baked = MeshCache.encode(fileName);
+        try
+        {
+            upload(baked);
+        }
+        finally
+        {
+            memFree(baked);
+        }
+    }
+
+    // Copies the vertices and indices of a baked file, usually a mapping of it, into new buffers
+    void upload(ByteBuffer baked)
+    {
+        this.vertexCount = baked.getInt(8);
+        this.indexCount = baked.getInt(12);
+        this.indexSize = baked.getInt(16);
+        this.indexType = this.indexSize == Short.BYTES ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+
+        int submeshes = baked.getInt(20);
+        int vertexOffset = baked.getInt(24);
+        int indexOffset = baked.getInt(28);
+
+        this.min.set(baked.getFloat(32), baked.getFloat(36), baked.getFloat(40));
+        this.max.set(baked.getFloat(44), baked.getFloat(48), baked.getFloat(52));
+
+        this.submeshFirst = new int[submeshes];
+        this.submeshCount = new int[submeshes];
+        this.submeshMaterial = new int[submeshes];
+        for (int i = 0; i < submeshes; i++)
+        {
+            int submesh = MeshCache.HEADER_SIZE + i * MeshCache.SUBMESH_SIZE;
+            this.submeshFirst[i] = baked.getInt(submesh);
+            this.submeshCount[i] = baked.getInt(submesh + 4);
+            this.submeshMaterial[i] = baked.getInt(submesh + 8);
+        }
+
+        this.vao = glGenVertexArrays();
+        GlState.bindVertexArray(this.vao);
+
+        this.vertexBuffer = glGenBuffers();
+        GlState.bindBuffer(GL_ARRAY_BUFFER, this.vertexBuffer);
+        glBufferData(GL_ARRAY_BUFFER, baked.slice(vertexOffset, this.vertexCount * MeshCache.VERTEX_SIZE), GL_STATIC_DRAW);
+
+        // Bound while the vertex array is, so it stays part of it
+        this.indexBuffer = glGenBuffers();
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.indexBuffer);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, baked.slice(indexOffset, this.indexCount * this.indexSize), GL_STATIC_DRAW);
+
+        this.configuredProgram = 0;
+        this.enabledCount = 0;
+    }
+
+    public String getFileName()
+    {
+        return this.fileName;
+    }
+
+    public int getVertexCount()
+    {
+        return this.vertexCount;
+    }
+
+    public int getIndexCount()
+    {
+        return this.indexCount;
+    }
+
+    public int getSubmeshCount()
+    {
+        return this.submeshFirst.length;
+    }
+
+    // Index of the submesh's material in the source file
+    public int getMaterial(int submesh)
+    {
+        return this.submeshMaterial[submesh];
+    }
+
+    // Model space bounds, for culling
+    public Vector3fc getMin()
+    {
+        return this.min;
+    }
+
+    public Vector3fc getMax()
+    {
+        return this.max;
+    }
+
+    // Draws every submesh in one call, uniforms have to be set on shader beforehand
+    public void draw(Shader shader)
+    {
+        bind(shader);
+        glDrawElements(GL_TRIANGLES, this.indexCount, this.indexType, 0);
+    }
+
+    public void draw(Shader shader, int submesh)
+    {
+        bind(shader);
+        glDrawElements(GL_TRIANGLES, this.submeshCount[submesh], this.indexType, (long) this.submeshFirst[submesh] * this.indexSize);
+    }
+
+    public void destroy()
+    {
+        GlState.deleteVertexArray(this.vao);
+        GlState.deleteBuffer(this.vertexBuffer);
+        GlState.deleteBuffer(this.indexBuffer);
+        this.vao = 0;
+        this.vertexBuffer = 0;
+        this.indexBuffer = 0;
+    }
+
+    private void bind(Shader shader)
+    {
+        shader.bind();
+        GlState.bindVertexArray(this.vao);
+
+        if (this.configuredProgram != shader.getHandle())
+        {
+            configure(shader);
+        }
+    }
+
+    private void configure(Shader shader)
+    {
+        for (int i = 0; i < this.enabledCount; i++)
+        {
+            glDisableVertexAttribArray(this.enabledAttributes[i]);
+        }
+        this.enabledCount = 0;
+
+        GlState.bindBuffer(GL_ARRAY_BUFFER, this.vertexBuffer);
+        for (String name : ATTRIBUTES)
+        {
+            int attribute = shader.getAttribute(name);
+            if (attribute < 0)
+            {
+                continue;
+            }
+
+            glEnableVertexAttribArray(attribute);
+            this.enabledAttributes[this.enabledCount++] = attribute;
+
+            switch (name)
+            {
+                case "position":
+                {
+                    glVertexAttribPointer(attribute, 3, GL_FLOAT, false, MeshCache.VERTEX_SIZE, MeshCache.POSITION_OFFSET);
+                    break;
+                }
+                case "texCoord":
+                {
+                    glVertexAttribPointer(attribute, 2, GL_FLOAT, false, MeshCache.VERTEX_SIZE, MeshCache.TEX_COORD_OFFSET);
+                    break;
+                }
+                default:
+                {
+                    glVertexAttribPointer(attribute, 3, GL_BYTE, true, MeshCache.VERTEX_SIZE, MeshCache.NORMAL_OFFSET);
+                    break;
+                }
+            }
+        }
+
+        this.configuredProgram = shader.getHandle();
+    }
+}
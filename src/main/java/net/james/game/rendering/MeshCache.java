@@ -0,0 +1,401 @@
+package net.james.game.rendering;
+
+import net.james.game.core.AssetArchive;
+import net.james.game.core.BakedFileCache;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Keeps models on disk already imported, so loading one is a file map and two buffer uploads
+// instead of a run through Assimp. Assimp triangulates, merges identical vertices, generates
+// missing normals, flattens the node hierarchy and reorders triangles for the post transform
+// vertex cache, then vertices are renumbered in the order the triangles first use them so the
+// vertex fetch walks memory forwards. Every Assimp mesh becomes a submesh with its material
+// index, bones and animations aren't kept.
+// File layout, little endian: magic, version, vertex count, index count, index size (2 or 4),
+// submesh count, vertex offset, index offset, bounds min xyz and max xyz as floats, then a first
+// index, index count, material and 0 per submesh, then the vertices and indices, each 16-byte aligned.
+// A vertex is 24 bytes: float position, float uv and a signed normalized byte normal padded to 4
+public class MeshCache extends BakedFileCache
+{
+    private static final int MAGIC = 0x4a474d53;
+    // Bump when the import flags or the vertex layout change so old files get baked again
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 8 * Integer.BYTES + 6 * Float.BYTES;
+    static final int SUBMESH_SIZE = 4 * Integer.BYTES;
+    private static final int ALIGNMENT = 16;
+
+    static final int VERTEX_SIZE = 24;
+    static final int POSITION_OFFSET = 0;
+    static final int TEX_COORD_OFFSET = 12;
+    static final int NORMAL_OFFSET = 20;
+
+    private static final int IMPORT_FLAGS = aiProcess_Triangulate | aiProcess_JoinIdenticalVertices | aiProcess_GenSmoothNormals
+            | aiProcess_PreTransformVertices | aiProcess_SortByPType | aiProcess_FindDegenerates | aiProcess_FindInvalidData
+            | aiProcess_RemoveRedundantMaterials | aiProcess_OptimizeMeshes | aiProcess_ImproveCacheLocality
+            | aiProcess_ValidateDataStructure;
+
+    public MeshCache(Path directory)
+    {
+        super(directory, "mesh", ".mesh", MAGIC, VERSION, HEADER_SIZE);
+    }
+
+    @Override
+    public Path bake(String fileName) throws IOException
+    {
+        Path file = getFile(fileName, null);
+        if (Files.isRegularFile(file))
+        {
+            return file;
+        }
+
+        ByteBuffer baked = encode(fileName);
+        try
+        {
+            store(file, baked);
+        }
+        finally
+        {
+            memFree(baked);
+        }
+
+        return file;
+    }
+
+    // Uploads fileName into mesh, importing and baking it first on a miss
+    void load(Mesh mesh, String fileName) throws RuntimeException
+    {
+        Path file = getFile(fileName, null);
+
+        ByteBuffer mapped = map(file);
+        if (mapped != null)
+        {
+            mesh.upload(mapped);
+            return;
+        }
+
+        ByteBuffer baked = encode(fileName);
+        try
+        {
+            tryStore(file, baked);
+            mesh.upload(baked);
+        }
+        finally
+        {
+            memFree(baked);
+        }
+    }
+
+    // A submesh reaching past the indices, or an index past the vertices, would have glDrawElements
+    // read past a buffer. The indices are read through the channel once to check them
+    @Override
+    protected boolean validate(ByteBuffer header, FileChannel channel, long size) throws IOException
+    {
+        int vertexCount = header.getInt(8);
+        int indexCount = header.getInt(12);
+        int indexSize = header.getInt(16);
+        int submeshes = header.getInt(20);
+        long indexOffset = header.getInt(28) & 0xffffffffL;
+        long vertexEnd = (header.getInt(24) & 0xffffffffL) + (long) vertexCount * VERTEX_SIZE;
+        long indexEnd = indexOffset + (long) indexCount * indexSize;
+        if ((indexSize != Short.BYTES && indexSize != Integer.BYTES) || vertexCount < 0 || indexCount < 0
+                || submeshes < 0 || HEADER_SIZE + (long) SUBMESH_SIZE * submeshes > size || vertexEnd > size || indexEnd > size)
+        {
+            return false;
+        }
+
+        ByteBuffer table = read(channel, SUBMESH_SIZE * submeshes);
+        if (table.hasRemaining())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < submeshes; i++)
+        {
+            int first = table.getInt(i * SUBMESH_SIZE);
+            int count = table.getInt(i * SUBMESH_SIZE + 4);
+            if (first < 0 || count < 0 || (long) first + count > indexCount)
+            {
+                return false;
+            }
+        }
+
+        channel.position(indexOffset);
+        ByteBuffer indices = read(channel, indexCount * indexSize);
+        if (indices.hasRemaining())
+        {
+            return false;
+        }
+
+        for (int i = 0; i < indexCount; i++)
+        {
+            // Unsigned, so a negative int is past any vertex count too
+            long index = indexSize == Short.BYTES ? indices.getShort(i * Short.BYTES) & 0xffff : indices.getInt(i * Integer.BYTES) & 0xffffffffL;
+            if (index >= vertexCount)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Imports the model and lays out the whole file in native memory
+    static ByteBuffer encode(String fileName) throws RuntimeException
+    {
+        AIScene scene = importScene(fileName);
+        try
+        {
+            return encode(scene, fileName);
+        }
+        finally
+        {
+            aiReleaseImport(scene);
+        }
+    }
+
+    // Packed models are imported from memory, which leaves out any files they reference
+    private static AIScene importScene(String fileName) throws RuntimeException
+    {
+        AIScene scene;
+        AssetArchive archive = AssetArchive.getMounted();
+        ByteBuffer packed = archive != null ? archive.get(fileName) : null;
+        if (packed != null)
+        {
+            try
+            {
+                int dot = fileName.lastIndexOf('.');
+                scene = aiImportFileFromMemory(packed, IMPORT_FLAGS, dot == -1 ? "" : fileName.substring(dot + 1));
+            }
+            finally
+            {
+                archive.release(packed);
+            }
+        }
+        else
+        {
+            scene = aiImportFile(fileName, IMPORT_FLAGS);
+        }
+
+        if (scene == null)
+        {
+            throw new RuntimeException("Unable to import " + fileName + ": " + aiGetErrorString());
+        }
+
+        return scene;
+    }
+
+    private static ByteBuffer encode(AIScene scene, String fileName) throws RuntimeException
+    {
+        int meshCount = scene.mNumMeshes();
+        PointerBuffer meshes = scene.mMeshes();
+
+        // Gather every mesh into one vertex list with indices into it, points and lines are dropped
+        int totalVertices = 0, totalIndices = 0;
+        for (int m = 0; m < meshCount; m++)
+        {
+            AIMesh mesh = AIMesh.create(meshes.get(m));
+            totalVertices += mesh.mNumVertices();
+            AIFace.Buffer faces = mesh.mFaces();
+            for (int f = 0; f < mesh.mNumFaces(); f++)
+            {
+                if (faces.get(f).mNumIndices() == 3)
+                {
+                    totalIndices += 3;
+                }
+            }
+        }
+
+        if (totalIndices == 0)
+        {
+            throw new RuntimeException("Unable to import " + fileName + ": no triangles");
+        }
+
+        float[] positions = new float[totalVertices * 3];
+        float[] normals = new float[totalVertices * 3];
+        float[] texCoords = new float[totalVertices * 2];
+        int[] indices = new int[totalIndices];
+        int[] submeshFirst = new int[meshCount];
+        int[] submeshCount = new int[meshCount];
+        int[] submeshMaterial = new int[meshCount];
+
+        int baseVertex = 0, index = 0;
+        for (int m = 0; m < meshCount; m++)
+        {
+            AIMesh mesh = AIMesh.create(meshes.get(m));
+            AIVector3D.Buffer vertices = mesh.mVertices();
+            AIVector3D.Buffer meshNormals = mesh.mNormals();
+            AIVector3D.Buffer meshTexCoords = mesh.mTextureCoords(0);
+
+            for (int v = 0; v < mesh.mNumVertices(); v++)
+            {
+                int i = baseVertex + v;
+                AIVector3D position = vertices.get(v);
+                positions[i * 3] = position.x();
+                positions[i * 3 + 1] = position.y();
+                positions[i * 3 + 2] = position.z();
+
+                if (meshNormals != null)
+                {
+                    AIVector3D normal = meshNormals.get(v);
+                    normals[i * 3] = normal.x();
+                    normals[i * 3 + 1] = normal.y();
+                    normals[i * 3 + 2] = normal.z();
+                }
+
+                if (meshTexCoords != null)
+                {
+                    AIVector3D texCoord = meshTexCoords.get(v);
+                    texCoords[i * 2] = texCoord.x();
+                    texCoords[i * 2 + 1] = texCoord.y();
+                }
+            }
+
+            submeshFirst[m] = index;
+            submeshMaterial[m] = mesh.mMaterialIndex();
+
+            AIFace.Buffer faces = mesh.mFaces();
+            for (int f = 0; f < mesh.mNumFaces(); f++)
+            {
+                AIFace face = faces.get(f);
+                if (face.mNumIndices() != 3)
+                {
+                    continue;
+                }
+
+                IntBuffer faceIndices = face.mIndices();
+                for (int k = 0; k < 3; k++)
+                {
+                    indices[index++] = baseVertex + faceIndices.get(k);
+                }
+            }
+
+            submeshCount[m] = index - submeshFirst[m];
+            baseVertex += mesh.mNumVertices();
+        }
+
+        // Renumber vertices in order of first use, unused ones fall away
+        int[] remap = new int[totalVertices];
+        int[] order = new int[totalVertices];
+        Arrays.fill(remap, -1);
+        int vertexCount = 0;
+        for (int i = 0; i < totalIndices; i++)
+        {
+            int vertex = indices[i];
+            if (remap[vertex] == -1)
+            {
+                remap[vertex] = vertexCount;
+                order[vertexCount++] = vertex;
+            }
+
+            indices[i] = remap[vertex];
+        }
+
+        int indexSize = vertexCount <= 0x10000 ? Short.BYTES : Integer.BYTES;
+        long vertexOffset = align(HEADER_SIZE + (long) SUBMESH_SIZE * meshCount);
+        long indexOffset = align(vertexOffset + (long) vertexCount * VERTEX_SIZE);
+        long size = align(indexOffset + (long) totalIndices * indexSize);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new RuntimeException("Unable to import " + fileName + ": too large");
+        }
+
+        ByteBuffer baked = memCalloc((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        baked.putInt(0, MAGIC);
+        baked.putInt(4, VERSION);
+        baked.putInt(8, vertexCount);
+        baked.putInt(12, totalIndices);
+        baked.putInt(16, indexSize);
+        baked.putInt(20, meshCount);
+        baked.putInt(24, (int) vertexOffset);
+        baked.putInt(28, (int) indexOffset);
+
+        for (int m = 0; m < meshCount; m++)
+        {
+            int submesh = HEADER_SIZE + m * SUBMESH_SIZE;
+            baked.putInt(submesh, submeshFirst[m]);
+            baked.putInt(submesh + 4, submeshCount[m]);
+            baked.putInt(submesh + 8, submeshMaterial[m]);
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int v = 0; v < vertexCount; v++)
+        {
+            int source = order[v];
+            int target = (int) vertexOffset + v * VERTEX_SIZE;
+
+            float x = positions[source * 3], y = positions[source * 3 + 1], z = positions[source * 3 + 2];
+            baked.putFloat(target + POSITION_OFFSET, x);
+            baked.putFloat(target + POSITION_OFFSET + 4, y);
+            baked.putFloat(target + POSITION_OFFSET + 8, z);
+            baked.putFloat(target + TEX_COORD_OFFSET, texCoords[source * 2]);
+            baked.putFloat(target + TEX_COORD_OFFSET + 4, texCoords[source * 2 + 1]);
+            for (int k = 0; k < 3; k++)
+            {
+                float n = Math.max(-1, Math.min(1, normals[source * 3 + k]));
+                baked.put(target + NORMAL_OFFSET + k, (byte) Math.round(n * 127));
+            }
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+
+        baked.putFloat(32, minX);
+        baked.putFloat(36, minY);
+        baked.putFloat(40, minZ);
+        baked.putFloat(44, maxX);
+        baked.putFloat(48, maxY);
+        baked.putFloat(52, maxZ);
+
+        for (int i = 0; i < totalIndices; i++)
+        {
+            if (indexSize == Short.BYTES)
+            {
+                baked.putShort((int) indexOffset + i * Short.BYTES, (short) indices[i]);
+            }
+            else
+            {
+                baked.putInt((int) indexOffset + i * Integer.BYTES, indices[i]);
+            }
+        }
+
+        return baked;
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    // Bakes ahead of time: <cache directory> <models or directories of models>...
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: MeshCache <cache directory> <models or directories>...");
+            System.exit(1);
+        }
+
+        MeshCache cache = new MeshCache(Path.of(args[0]));
+        bakeAll(cache, args, 1, "obj|fbx|gltf|glb|dae|3ds|ply|stl|blend");
+    }
+}
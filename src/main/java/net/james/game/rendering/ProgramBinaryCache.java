@@ -0,0 +1,249 @@
+package net.james.game.rendering;
+
+import net.james.game.core.AtomicFile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+// Keeps linked program binaries on disk, keyed by the preprocessed stage sources and the driver
+// that produced them. File layout: magic, binary format, compile nanos, binary length, binary
+public class ProgramBinaryCache
+{
+    private static final int MAGIC = 0x4a475042;
+    private static final int HEADER_SIZE = Integer.BYTES * 3 + Long.BYTES;
+
+    private final Path directory;
+    private Boolean supported;
+    private String driver;
+
+    private int hits;
+    private int misses;
+    private int rejected;
+    private long nanosSaved;
+
+    public ProgramBinaryCache(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    public int getHits()
+    {
+        return this.hits;
+    }
+
+    public int getMisses()
+    {
+        return this.misses;
+    }
+
+    // Binaries the driver refused, usually after a driver update the version string didn't catch
+    public int getRejected()
+    {
+        return this.rejected;
+    }
+
+    // Compile and link time recorded when each hit was stored, minus the time it took to restore it
+    public long getNanosSaved()
+    {
+        return this.nanosSaved;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ProgramBinaryCache{hits=%d, misses=%d, rejected=%d, saved=%.2fms}",
+                this.hits, this.misses, this.rejected, this.nanosSaved / 1_000_000.0);
+    }
+
+    // Returns a linked program restored from disk, or 0 if there is no usable binary
+    int load(List<Shader.SubShader> shaders)
+    {
+        if (!isSupported())
+        {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        Path file = getFile(shaders);
+        if (!Files.isRegularFile(file))
+        {
+            this.misses++;
+            return 0;
+        }
+
+        ByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            // Read rather than map, a mapped file can't be deleted on Windows when the binary is rejected
+            buffer = memAlloc((int) channel.size()).order(ByteOrder.nativeOrder());
+            int read = 0;
+            while (buffer.hasRemaining() && read >= 0)
+            {
+                read = channel.read(buffer);
+            }
+            buffer.flip();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to read program binary " + file + ": " + e.getMessage());
+            if (buffer != null)
+            {
+                memFree(buffer);
+            }
+            this.misses++;
+            return 0;
+        }
+
+        try
+        {
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            {
+                return reject(file);
+            }
+
+            int binaryFormat = buffer.getInt(4);
+            long compileNanos = buffer.getLong(8);
+            int length = buffer.getInt(16);
+            if (length <= 0 || HEADER_SIZE + length > buffer.remaining())
+            {
+                return reject(file);
+            }
+
+            int program = glCreateProgram();
+            glProgramBinary(program, binaryFormat, buffer.slice(HEADER_SIZE, length));
+
+            if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE)
+            {
+                glDeleteProgram(program);
+                return reject(file);
+            }
+
+            this.hits++;
+            this.nanosSaved += Math.max(0, compileNanos - (System.nanoTime() - start));
+            return program;
+        }
+        finally
+        {
+            memFree(buffer);
+        }
+    }
+
+    // Must be called between attaching the stages and linking so the driver keeps the binary around
+    void prepare(int program)
+    {
+        if (isSupported())
+        {
+            glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+    }
+
+    void store(List<Shader.SubShader> shaders, int program, long compileNanos)
+    {
+        if (!isSupported())
+        {
+            return;
+        }
+
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0)
+        {
+            return;
+        }
+
+        Path file = getFile(shaders);
+        ByteBuffer buffer = memAlloc(HEADER_SIZE + length).order(ByteOrder.nativeOrder());
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer binaryFormat = stack.mallocInt(1);
+            glGetProgramBinary(program, null, binaryFormat, buffer.slice(HEADER_SIZE, length));
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, binaryFormat.get(0));
+            buffer.putLong(8, compileNanos);
+            buffer.putInt(16, length);
+
+            AtomicFile.write(file, buffer);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to write program binary " + file + ": " + e.getMessage());
+        }
+        finally
+        {
+            memFree(buffer);
+        }
+    }
+
+    private int reject(Path file)
+    {
+        this.rejected++;
+        this.misses++;
+
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Unable to delete program binary " + file + ": " + e.getMessage());
+        }
+
+        return 0;
+    }
+
+    private boolean isSupported()
+    {
+        if (this.supported == null)
+        {
+            GLCapabilities caps = GL.getCapabilities();
+            this.supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                    && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+
+            this.driver = glGetString(GL_VENDOR) + '\0' + glGetString(GL_RENDERER) + '\0' + glGetString(GL_VERSION);
+        }
+
+        return this.supported;
+    }
+
+    private Path getFile(List<Shader.SubShader> shaders)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.driver.getBytes(StandardCharsets.UTF_8));
+
+            for (Shader.SubShader shader : shaders)
+            {
+                digest.update((byte) 0);
+                digest.update(shader.getStage().directive.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(shader.getSource().getBytes(StandardCharsets.UTF_8));
+            }
+
+            return this.directory.resolve(HexFormat.of().formatHex(digest.digest()) + ".bin");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.james.game.rendering;
+
+import java.util.Arrays;
+
+// Records draw items as parallel arrays and orders them by a 64-bit sort key.
+// Key layout, most significant first: layer (16) | sequence (48). The sequence is the
+// submission index, so items within a layer keep the order they were drawn in and alpha
+// blending stays correct
+class RenderQueue
+{
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_PASSES = Long.SIZE / RADIX_BITS;
+    private static final int RADIX_BUCKETS = 1 << RADIX_BITS;
+
+    int size;
+
+    long[] keys;
+    Texture[] textures;
+    float[] x, y, w, h, z, rotation;
+    int[] color;
+    float[] u, v, uw, vh;
+
+    // Item indices in draw order once sort() has run
+    int[] order;
+
+    private long[] sortKeys;
+    private long[] sortKeysScratch;
+    private int[] orderScratch;
+    private final int[] histograms = new int[RADIX_PASSES * RADIX_BUCKETS];
+
+    RenderQueue(int capacity)
+    {
+        allocate(capacity);
+    }
+
+    static long key(int layer, int sequence)
+    {
+        return ((long) ((layer + 0x8000) & 0xffff) << 48) | (sequence & 0xffffffffL);
+    }
+
+    static int layer(long key)
+    {
+        return (int) (key >>> 48) - 0x8000;
+    }
+
+    void clear()
+    {
+        Arrays.fill(this.textures, 0, this.size, null);
+        this.size = 0;
+    }
+
+    int add(long key, Texture texture, float x, float y, float w, float h, float z, float rotation,
+            int color, float u, float v, float uw, float vh)
+    {
+        if (this.size == this.keys.length)
+        {
+            allocate(this.keys.length * 2);
+        }
+
+        int item = this.size++;
+        this.keys[item] = key;
+        this.textures[item] = texture;
+        this.x[item] = x;
+        this.y[item] = y;
+        this.w[item] = w;
+        this.h[item] = h;
+        this.z[item] = z;
+        this.rotation[item] = rotation;
+        this.color[item] = color;
+        this.u[item] = u;
+        this.v[item] = v;
+        this.uw[item] = uw;
+        this.vh[item] = vh;
+        return item;
+    }
+
+    // LSD radix sort over the keys. Every pass is stable, so items with equal keys keep
+    // the order they were submitted in
+    void sort()
+    {
+        int count = this.size;
+        if (count == 0)
+        {
+            return;
+        }
+
+        long[] srcKeys = this.sortKeys;
+        long[] dstKeys = this.sortKeysScratch;
+        int[] srcOrder = this.order;
+        int[] dstOrder = this.orderScratch;
+
+        Arrays.fill(this.histograms, 0);
+        for (int i = 0; i < count; i++)
+        {
+            long key = this.keys[i];
+            srcKeys[i] = key;
+            srcOrder[i] = i;
+
+            for (int pass = 0; pass < RADIX_PASSES; pass++)
+            {
+                this.histograms[pass * RADIX_BUCKETS + (int) ((key >>> (pass * RADIX_BITS)) & (RADIX_BUCKETS - 1))]++;
+            }
+        }
+
+        for (int pass = 0; pass < RADIX_PASSES; pass++)
+        {
+            int base = pass * RADIX_BUCKETS;
+            int shift = pass * RADIX_BITS;
+
+            // Every key shares this byte, so the pass wouldn't move anything
+            if (this.histograms[base + (int) ((srcKeys[0] >>> shift) & (RADIX_BUCKETS - 1))] == count)
+            {
+                continue;
+            }
+
+            int offset = 0;
+            for (int bucket = 0; bucket < RADIX_BUCKETS; bucket++)
+            {
+                int bucketSize = this.histograms[base + bucket];
+                this.histograms[base + bucket] = offset;
+                offset += bucketSize;
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                long key = srcKeys[i];
+                int target = this.histograms[base + (int) ((key >>> shift) & (RADIX_BUCKETS - 1))]++;
+                dstKeys[target] = key;
+                dstOrder[target] = srcOrder[i];
+            }
+
+            long[] keys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = keys;
+
+            int[] order = srcOrder;
+            srcOrder = dstOrder;
+            dstOrder = order;
+        }
+
+        if (srcOrder != this.order)
+        {
+            System.arraycopy(srcOrder, 0, this.order, 0, count);
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        this.keys = grow(this.keys, capacity);
+        this.textures = this.textures == null ? new Texture[capacity] : Arrays.copyOf(this.textures, capacity);
+        this.x = grow(this.x, capacity);
+        this.y = grow(this.y, capacity);
+        this.w = grow(this.w, capacity);
+        this.h = grow(this.h, capacity);
+        this.z = grow(this.z, capacity);
+        this.rotation = grow(this.rotation, capacity);
+        this.color = grow(this.color, capacity);
+        this.u = grow(this.u, capacity);
+        this.v = grow(this.v, capacity);
+        this.uw = grow(this.uw, capacity);
+        this.vh = grow(this.vh, capacity);
+
+        this.order = new int[capacity];
+        this.orderScratch = new int[capacity];
+        this.sortKeys = new long[capacity];
+        this.sortKeysScratch = new long[capacity];
+    }
+
+    private static float[] grow(float[] array, int capacity)
+    {
+        return array == null ? new float[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static int[] grow(int[] array, int capacity)
+    {
+        return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static long[] grow(long[] array, int capacity)
+    {
+        return array == null ? new long[capacity] : Arrays.copyOf(array, capacity);
+    }
+}
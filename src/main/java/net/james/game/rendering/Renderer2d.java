@@ -1,54 +1,156 @@
 package net.james.game.rendering;
 
+import net.james.game.core.Color;
+import net.james.game.core.Config;
+import net.james.game.core.Profiler;
 import net.james.game.core.Rectangle;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
-import org.joml.Vector4f;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GLFW;
+import org.lwjgl.system.MemoryStack;
 
-import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
 
 public class Renderer2d
 {
-    private static final int TEXTURE_STACK_SIZE = 16;
-    private static final int MAX_SPRITES = 512;
-
-    private record SbVertex(Vector4f pos, Vector4f color, Vector2f texCoord)
+    public enum ERenderMode
     {
-
+        // Four vertices and six indices per sprite
+        BATCHED,
+        // One 48 byte instance record per sprite, expanded to a quad by the vertex shader
+        INSTANCED
     }
 
+    static final int TEXTURE_STACK_SIZE = 16;
+    private static final int INITIAL_SPRITES = 512;
+    private static final int CHUNK_TILES = 32;
+    private static final long STREAM_REGION_SIZE = 4 * 1024 * 1024;
+
+    private static final int PROFILE_BEGIN = Profiler.scope("renderer.begin");
+    private static final int PROFILE_END = Profiler.scope("renderer.end");
+    private static final int PROFILE_FLUSH = Profiler.scope("renderer.flush");
+    private static final int PROFILE_TILES = Profiler.scope("renderer.tiles");
+
     private boolean renderBegun;
     private Vector2f cameraPos;
+    private int viewWidth;
+    private int viewHeight;
 
-    private Texture nullTexture;
-    private final Texture[] textureStack = new Texture[TEXTURE_STACK_SIZE];
     private final int[] fontTexture = new int[TEXTURE_STACK_SIZE];
-    private int currentTexture;
 
-    private Rectangle uv;
-    private Vector4f color;
+    private final ERenderMode mode;
+    private final int initialSprites;
+    private int drawCalls;
+    private int frame;
 
-    private final SbVertex[] vertices = new SbVertex[MAX_SPRITES * 4];
-    private final short[] indices = new short[MAX_SPRITES * 6];
+    // Sprites drawn straight through the renderer go to its own list, which always draws first
+    private final SpriteList spriteList;
+    private final List<SpriteList> lists = new ArrayList<>();
+    private long[] vertexOffsets = new long[8];
+    private long[] indexOffsets = new long[8];
+    private int[] cursors = new int[8];
 
-    private short currentVertex;
-    private int currentIndex;
+    private final List<TileLayer> tileLayers = new ArrayList<>();
+    private int[] visibleChunks = new int[64];
 
     private int vao;
-    private int vbo;
-    private int ibo;
+    private final StreamBuffer stream;
+
+    private int positionAttribute;
+    private int colorAttribute;
+    private int texCoordAttribute;
+    private int textureAttribute;
+
+    private int rectAttribute;
+    private int transformAttribute;
+    private int uvAttribute;
+    private int instanceColorAttribute;
+    private int instanceTextureAttribute;
 
     private Shader shader;
     private Matrix4f projectionMatrix;
 
+    private final int projectionMatrixUniform;
+    private final int fontTextureUniform;
+
     public Renderer2d()
     {
+        this(ERenderMode.BATCHED);
+    }
+
+    public Renderer2d(ERenderMode mode)
+    {
+        this(mode, INITIAL_SPRITES, STREAM_REGION_SIZE);
+    }
 
+    public Renderer2d(ERenderMode mode, Config config)
+    {
+        this(mode, config.initialSprites, config.streamBufferBytes);
+    }
+
+    // initialSprites is the starting capacity of every sprite list, streamRegionSize the bytes one
+    // frame can stream before the buffer has to grow, see Config
+    public Renderer2d(ERenderMode mode, int initialSprites, long streamRegionSize)
+    {
+        boolean instanced = mode == ERenderMode.INSTANCED;
+
+        this.mode = mode;
+        this.initialSprites = initialSprites;
+        this.cameraPos = new Vector2f();
+
+        this.shader = new Shader("shaders/standard.glsl", instanced ? List.of("INSTANCED") : List.of());
+        this.spriteList = createSpriteList();
+
+        this.projectionMatrixUniform = this.shader.getUniformHandle("projectionMatrix");
+        this.fontTextureUniform = this.shader.getUniformHandle("isFontTexture");
+        this.projectionMatrix = new Matrix4f();
+
+        this.shader.bind();
+        for (int i = 0; i < TEXTURE_STACK_SIZE; i++)
+        {
+            this.shader.set("textureStack[" + i + "]", i);
+        }
+
+        this.stream = new StreamBuffer(streamRegionSize);
+
+        this.vao = glGenVertexArrays();
+        GlState.bindVertexArray(this.vao);
+
+        if (instanced)
+        {
+            this.rectAttribute = this.shader.getAttribute("instanceRect");
+            this.transformAttribute = this.shader.getAttribute("instanceTransform");
+            this.uvAttribute = this.shader.getAttribute("instanceUV");
+            this.instanceColorAttribute = this.shader.getAttribute("instanceColor");
+            this.instanceTextureAttribute = this.shader.getAttribute("instanceTexture");
+
+            for (int attribute : new int[] { this.rectAttribute, this.transformAttribute, this.uvAttribute,
+                    this.instanceColorAttribute, this.instanceTextureAttribute })
+            {
+                glEnableVertexAttribArray(attribute);
+                glVertexAttribDivisor(attribute, 1);
+            }
+        }
+        else
+        {
+            this.positionAttribute = this.shader.getAttribute("position");
+            this.colorAttribute = this.shader.getAttribute("color");
+            this.texCoordAttribute = this.shader.getAttribute("texCoord");
+            this.textureAttribute = this.shader.getAttribute("textureSlot");
+
+            GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.stream.handle());
+
+            glEnableVertexAttribArray(this.positionAttribute);
+            glEnableVertexAttribArray(this.colorAttribute);
+            glEnableVertexAttribArray(this.texCoordAttribute);
+            glEnableVertexAttribArray(this.textureAttribute);
+        }
     }
 
     public void setRenderColor(float r, float g, float b)
@@ -58,12 +160,22 @@ public class Renderer2d
 
     public void setRenderColor(float r, float g, float b, float a)
     {
-        color = new Vector4f(r, g, b, a);
+        spriteList.setRenderColor(r, g, b, a);
+    }
+
+    public void setRenderColor(Color color)
+    {
+        spriteList.setRenderColor(color);
     }
 
     public void setUVRect(float uvX, float uvY, float uvWidth, float uvHeight)
     {
-        uv = new Rectangle(uvX, uvY, uvWidth, uvHeight);
+        spriteList.setUVRect(uvX, uvY, uvWidth, uvHeight);
+    }
+
+    public void setUVRect(Rectangle uvRect)
+    {
+        spriteList.setUVRect(uvRect);
     }
 
     public void setCameraPos(Vector2f pos)
@@ -71,26 +183,119 @@ public class Renderer2d
         cameraPos = pos;
     }
 
+    // Layers are drawn in ascending order, sprites within a layer in the order they were drawn
+    public void setLayer(int layer)
+    {
+        spriteList.setLayer(layer);
+    }
+
+    public void setDepth(float depth)
+    {
+        spriteList.setDepth(depth);
+    }
+
+    // Radians, sprites turn around their centre
+    public void setRotation(float rotation)
+    {
+        spriteList.setRotation(rotation);
+    }
+
+    public ERenderMode getMode()
+    {
+        return mode;
+    }
+
+    // The world space area the current camera shows, for culling with a SpatialGrid before
+    // submitting. Uses the window size from the last begin()
+    public Rectangle getViewRect()
+    {
+        return new Rectangle(cameraPos.x, cameraPos.y, viewWidth, viewHeight);
+    }
+
+    public int getDrawCalls()
+    {
+        return drawCalls;
+    }
+
+    // A list to record into from another thread, it can be reused every frame
+    public SpriteList createSpriteList()
+    {
+        return new SpriteList(mode, initialSprites);
+    }
+
+    // A tile grid kept on the GPU, chunkTiles by chunkTiles tiles are drawn with one call
+    public TileLayer createTileLayer(int width, int height, float tileSize)
+    {
+        return createTileLayer(width, height, tileSize, CHUNK_TILES);
+    }
+
+    public TileLayer createTileLayer(int width, int height, float tileSize, int chunkTiles)
+    {
+        return new TileLayer(mode, width, height, tileSize, chunkTiles);
+    }
+
     public void begin()
     {
+        Profiler.begin(PROFILE_BEGIN);
+
         renderBegun = true;
-        currentTexture = 0;
-        currentIndex = 0;
-        currentVertex = 0;
+        drawCalls = 0;
+        frame++;
+        lists.clear();
+        tileLayers.clear();
+        spriteList.begin();
+        lists.add(spriteList);
+
+        int width, height;
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer pWidth = stack.mallocInt(1), pHeight = stack.mallocInt(1);
+            long context = GLFW.glfwGetCurrentContext();
+            GLFW.glfwGetWindowSize(context, pWidth, pHeight);
+
+            width = pWidth.get(0);
+            height = pHeight.get(0);
+        }
 
-        IntBuffer width = IntBuffer.allocate(1), height = IntBuffer.allocate(1);
-        long context = GLFW.glfwGetCurrentContext();
-        GLFW.glfwGetWindowSize(context, width, height);
+        viewWidth = width;
+        viewHeight = height;
 
         shader.bind();
 
-        var projection = new Matrix4f().ortho(cameraPos.x, cameraPos.x + width.get(), cameraPos.y, cameraPos.y + height.get(), 1, -101);
-        shader.set("projectionMatrix", projection);
+        projectionMatrix.setOrtho(cameraPos.x, cameraPos.x + width, cameraPos.y, cameraPos.y + height, 1, -101);
+        shader.set(projectionMatrixUniform, projectionMatrix);
 
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        GlState.setBlend(true);
+        GlState.blendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+
+        Profiler.end();
+    }
+
+    // Queues a list finished on another thread. Lists are drawn layer by layer, and within a
+    // layer in the order they were passed here, after the renderer's own sprites
+    public void draw(SpriteList list)
+    {
+        if(!renderBegun)
+        {
+            return;
+        }
+
+        if(list.isRecording())
+        {
+            throw new IllegalStateException("SpriteList.end() has to be called before it is drawn");
+        }
 
-        setRenderColor(1, 1, 1, 1);
+        lists.add(list);
+    }
+
+    // Queues a tile layer for this frame. It draws before any sprite on the same layer,
+    // tile layers on the same layer draw in the order they were passed here
+    public void draw(TileLayer layer)
+    {
+        if(renderBegun)
+        {
+            tileLayers.add(layer);
+        }
     }
 
     public void end()
@@ -100,40 +305,305 @@ public class Renderer2d
             return;
         }
 
-        flushBatch();
+        Profiler.begin(PROFILE_END);
 
-        glUseProgram(0);
+        spriteList.end();
+        upload();
+        drawLists();
+        stream.endFrame();
 
+        lists.clear();
+        tileLayers.clear();
         renderBegun = false;
+
+        Profiler.end();
     }
 
     public void drawBox(Vector2f pos, Vector2f size)
     {
+        if(renderBegun)
+        {
+            spriteList.drawBox(pos, size);
+        }
+    }
+
+    public void drawSprite(Texture texture, Vector2f pos, Vector2f size)
+    {
+        if(renderBegun)
+        {
+            spriteList.drawSprite(texture, pos, size);
+        }
+    }
 
+    public void drawSprite(TextureRegion region, Vector2f pos, Vector2f size)
+    {
+        if(renderBegun)
+        {
+            spriteList.drawSprite(region, pos, size);
+        }
     }
 
-    private void flushBatch()
+    // Text with its baseline starting at pos, in the current render color. The layout is cached
+    // by the font, for text that changes every frame prefer drawText with a TextRun you keep
+    public void drawText(Font font, String text, Vector2f pos)
     {
-        if(currentVertex == 0 || currentIndex == 0 || !renderBegun)
+        if(renderBegun)
+        {
+            drawText(font.getRun(text), pos);
+        }
+    }
+
+    // Every glyph comes from the font's atlas, so a run never splits the batch
+    public void drawText(TextRun run, Vector2f pos)
+    {
+        if(!renderBegun)
         {
             return;
         }
 
-        for(int i = 0; i < TEXTURE_STACK_SIZE; i++)
+        Font font = run.getFont();
+        Texture atlas = font.getAtlas();
+        float x = Math.round(pos.x), y = Math.round(pos.y);
+
+        for(int i = 0; i < run.length; i++)
         {
-            shader.set("isFontTexture[" + i + "]", fontTexture[i]);
+            int slot = font.glyph(run.codepoints[i], frame);
+            if(slot < 0 || font.isBlank(slot))
+            {
+                continue;
+            }
+
+            spriteList.drawGlyph(atlas, x + Math.round(run.penX[i]) + font.getOffsetX(slot), y + Math.round(run.penY[i]) + font.getOffsetY(slot),
+                    font.getWidth(slot), font.getHeight(slot),
+                    font.slotU[slot], font.slotV[slot], font.slotUW[slot], font.slotVH[slot]);
         }
+    }
 
-        IntBuffer depthFunc = IntBuffer.wrap(new int[]{ GL_LESS });
-        glGetIntegerv(GL_DEPTH_FUNC, depthFunc);
-        glDepthFunc(GL_LEQUAL);
+    public StreamBuffer getStreamBuffer()
+    {
+        return stream;
+    }
 
-        glBindVertexArray(vao);
-        glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+    public void destroy()
+    {
+        GlState.deleteVertexArray(vao);
+        stream.destroy();
+        spriteList.destroy();
+    }
 
-        ByteBuffer buffer = BufferUtils.createByteBuffer(vertices.length);
-        
-        glBufferSubData(GL_ARRAY_BUFFER, 0, currentIndex, );
+    // Copies every list into the stream buffer in one go
+    private void upload()
+    {
+        int count = lists.size();
+        if(vertexOffsets.length < count)
+        {
+            vertexOffsets = new long[count * 2];
+            indexOffsets = new long[count * 2];
+            cursors = new int[count * 2];
+        }
+
+        long bytes = 0;
+        for(int i = 0; i < count; i++)
+        {
+            SpriteList list = lists.get(i);
+            if(list.getBatch() != null)
+            {
+                bytes += (long) list.getBatch().vertexCount() * SpriteBatch.VERTEX_STRIDE
+                        + (long) list.getBatch().indexCount() * SpriteBatch.INDEX_STRIDE + 32;
+            }
+            else
+            {
+                bytes += (long) list.getInstances().instanceCount() * InstanceBatch.STRIDE + 16;
+            }
+        }
+
+        stream.reserve(bytes);
+
+        for(int i = 0; i < count; i++)
+        {
+            SpriteList list = lists.get(i);
+            cursors[i] = 0;
+            if(list.segmentCount == 0)
+            {
+                continue;
+            }
+
+            if(list.getBatch() != null)
+            {
+                vertexOffsets[i] = stream.upload(list.getBatch().vertices());
+                indexOffsets[i] = stream.upload(list.getBatch().indices());
+            }
+            else
+            {
+                vertexOffsets[i] = stream.upload(list.getInstances().instances());
+            }
+        }
+    }
+
+    // Merges the lists' segments by layer. Ties go to the earlier list, so the order only
+    // depends on the order of draw calls and never on which worker finished first
+    private void drawLists()
+    {
+        GlState.depthFunc(GL_LEQUAL);
+        GlState.bindVertexArray(vao);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, stream.handle());
+
+        // List.sort is stable, so equal layers keep their draw order
+        tileLayers.sort(Comparator.comparingInt(TileLayer::getLayer));
+        Rectangle view = tileLayers.isEmpty() ? null : getViewRect();
+        int tileLayer = 0;
+
+        int count = lists.size();
+        int pointersSetFor = -1;
+        while(true)
+        {
+            int next = -1;
+            int nextLayer = 0;
+            for(int i = 0; i < count; i++)
+            {
+                SpriteList list = lists.get(i);
+                if(cursors[i] < list.segmentCount)
+                {
+                    int layer = list.segmentLayer[cursors[i]];
+                    if(next == -1 || layer < nextLayer)
+                    {
+                        next = i;
+                        nextLayer = layer;
+                    }
+                }
+            }
+
+            while(tileLayer < tileLayers.size() && (next == -1 || tileLayers.get(tileLayer).getLayer() <= nextLayer))
+            {
+                drawTileLayer(tileLayers.get(tileLayer++), view);
+                pointersSetFor = -1;
+            }
+
+            if(next == -1)
+            {
+                break;
+            }
+
+            SpriteList list = lists.get(next);
+            int segment = cursors[next]++;
+            if(list.segmentSize[segment] == 0)
+            {
+                continue;
+            }
+
+            if(list.getBatch() != null && pointersSetFor != next)
+            {
+                setVertexPointers(vertexOffsets[next]);
+                pointersSetFor = next;
+            }
+
+            drawSegment(list, segment, next);
+        }
+    }
+
+    private void drawTileLayer(TileLayer layer, Rectangle view)
+    {
+        Profiler.begin(PROFILE_TILES);
+
+        if(visibleChunks.length < layer.maxVisibleChunks())
+        {
+            visibleChunks = new int[layer.maxVisibleChunks()];
+        }
+
+        int chunks = layer.prepare(view, visibleChunks);
+        if(chunks > 0)
+        {
+            for(int i = 0; i < layer.textureCount; i++)
+            {
+                // Slots no tile uses any more are left empty
+                Texture texture = layer.textures[i];
+                if(texture == null)
+                {
+                    continue;
+                }
+
+                texture.bind(i);
+                fontTexture[i] = texture.getFormat() == Texture.ETextureFormat.R ? 1 : 0;
+            }
+
+            shader.set(fontTextureUniform, fontTexture, TEXTURE_STACK_SIZE);
+        }
+
+        for(int i = 0; i < chunks; i++)
+        {
+            int chunk = visibleChunks[i];
+            int buffer = layer.chunkBuffers[chunk];
+
+            GlState.bindBuffer(GL_ARRAY_BUFFER, buffer);
+            if(mode == ERenderMode.BATCHED)
+            {
+                setVertexPointers(0);
+                GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffer);
+                glDrawElements(GL_TRIANGLES, layer.chunkSizes[chunk], GL_UNSIGNED_INT, layer.chunkIndexOffsets[chunk]);
+            }
+            else
+            {
+                setInstancePointers(0);
+                glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, layer.chunkSizes[chunk]);
+            }
+            drawCalls++;
+        }
+
+        // Back to the stream buffer for the sprites
+        GlState.bindBuffer(GL_ARRAY_BUFFER, stream.handle());
+
+        Profiler.end();
+    }
+
+    private void drawSegment(SpriteList list, int segment, int index)
+    {
+        Profiler.begin(PROFILE_FLUSH);
+
+        int textures = list.segmentTextureCount[segment];
+        int base = segment * TEXTURE_STACK_SIZE;
+        for(int i = 0; i < textures; i++)
+        {
+            Texture texture = list.segmentTextures[base + i];
+            texture.bind(i);
+            fontTexture[i] = texture.getFormat() == Texture.ETextureFormat.R ? 1 : 0;
+        }
+
+        shader.set(fontTextureUniform, fontTexture, TEXTURE_STACK_SIZE);
+
+        int first = list.segmentFirst[segment];
+        int size = list.segmentSize[segment];
+        if(list.getBatch() != null)
+        {
+            GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, stream.handle());
+            glDrawElements(GL_TRIANGLES, size, GL_UNSIGNED_INT, indexOffsets[index] + (long) first * SpriteBatch.INDEX_STRIDE);
+        }
+        else
+        {
+            setInstancePointers(vertexOffsets[index] + (long) first * InstanceBatch.STRIDE);
+            glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, size);
+        }
+        drawCalls++;
+
+        Profiler.end();
+    }
+
+    private void setVertexPointers(long offset)
+    {
+        int stride = SpriteBatch.VERTEX_STRIDE;
+        glVertexAttribPointer(positionAttribute, 3, GL_FLOAT, false, stride, offset + SpriteBatch.POSITION_OFFSET);
+        // Fixed point, the shader scales it back down
+        glVertexAttribPointer(texCoordAttribute, 2, GL_SHORT, false, stride, offset + SpriteBatch.TEXCOORD_OFFSET);
+        glVertexAttribPointer(colorAttribute, 4, GL_UNSIGNED_BYTE, true, stride, offset + SpriteBatch.COLOR_OFFSET);
+        glVertexAttribIPointer(textureAttribute, 1, GL_UNSIGNED_BYTE, stride, offset + SpriteBatch.TEXTURE_OFFSET);
+    }
+
+    private void setInstancePointers(long offset)
+    {
+        int stride = InstanceBatch.STRIDE;
+        glVertexAttribPointer(rectAttribute, 4, GL_FLOAT, false, stride, offset + InstanceBatch.RECT_OFFSET);
+        glVertexAttribPointer(transformAttribute, 2, GL_FLOAT, false, stride, offset + InstanceBatch.TRANSFORM_OFFSET);
+        glVertexAttribPointer(uvAttribute, 4, GL_FLOAT, false, stride, offset + InstanceBatch.UV_OFFSET);
+        glVertexAttribPointer(instanceColorAttribute, 4, GL_UNSIGNED_BYTE, true, stride, offset + InstanceBatch.COLOR_OFFSET);
+        glVertexAttribIPointer(instanceTextureAttribute, 1, GL_INT, stride, offset + InstanceBatch.TEXTURE_OFFSET);
     }
 }
@@ -1,19 +1,20 @@
 package net.james.game.rendering;
 
-import net.james.game.util.BiConsumer;
-import net.james.game.util.TriConsumer;
+import net.james.game.util.IntBoolObjConsumer;
 import org.joml.*;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.system.MemoryStack;
 
-import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 
 import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
 
 public class Shader
 {
@@ -39,33 +40,66 @@ public class Shader
 
         private EShaderStage stage;
         private int handle;
+        private String source;
 
         public SubShader(EShaderStage stage, String fileName)
+        {
+            this(stage, fileName, List.of());
+        }
+
+        public SubShader(EShaderStage stage, String fileName, Collection<String> keywords)
         {
             this.stage = EShaderStage.Undefined;
             this.handle = 0;
 
-            this.load(stage, fileName);
+            this.load(stage, fileName, keywords);
         }
 
-        public void load(EShaderStage stage, String fileName)
+        // Only prepares the source, so it can run on any thread. compile() hands it to GL, which
+        // never happens for a program restored from the binary cache
+        public void load(EShaderStage stage, String fileName, Collection<String> keywords) throws RuntimeException
         {
-            createGlShader(stage);
+            if (stage.id == 0)
+            {
+                throw new RuntimeException("Invalid shader stage provided.");
+            }
 
-            String source = getShaderSource(fileName);
+            this.stage = stage;
+            this.source = ShaderPreprocessor.process(fileName, stage, keywords);
+        }
+
+        // Queues the compile without waiting on the result, see checkStatus()
+        public void compile()
+        {
+            createGlShader(this.stage);
 
-            compileShaderSource(source);
+            glShaderSource(this.handle, this.source);
+            glCompileShader(this.handle);
         }
 
-        private void createGlShader(EShaderStage stage) throws RuntimeException
+        public boolean checkStatus()
         {
-            if (stage.id == 0)
+            if (glGetShaderi(this.handle, GL_COMPILE_STATUS) == GL_FALSE)
             {
-                throw new RuntimeException("Invalid shader stage provided.");
+                this.lastError = glGetShaderInfoLog(this.handle);
+                return false;
             }
 
-            this.stage = stage;
+            return true;
+        }
+
+        public EShaderStage getStage()
+        {
+            return this.stage;
+        }
+
+        public String getSource()
+        {
+            return this.source;
+        }
 
+        private void createGlShader(EShaderStage stage) throws RuntimeException
+        {
             switch (stage)
             {
                 case Vertex:
@@ -78,84 +112,165 @@ public class Shader
                     this.handle = glCreateShader(GL_FRAGMENT_SHADER);
                     break;
                 }
+                default:
+                {
+                    throw new RuntimeException("Invalid shader stage provided.");
+                }
             }
         }
+    }
 
-        private void compileShaderSource(String source) throws RuntimeException
+    private static class Uniform
+    {
+        public final String name;
+        public final int location;
+        public final int type;
+
+        // Last value sent to gl, stored as raw bits so ints and floats share one array
+        private final int[] shadow;
+        private boolean valid;
+
+        // Elements from this one to the end of its array, 1 outside arrays
+        private int elements = 1;
+
+        public Uniform(String name, int location, int type)
         {
-            StringBuilder stringBuilder = getSourceWithDirective(source);
+            this.name = name;
+            this.location = location;
+            this.type = type;
+            this.shadow = new int[componentCount(type)];
+            this.valid = false;
+        }
 
-            glShaderSource(this.handle, stringBuilder.toString());
-            glCompileShader(this.handle);
+        // Returns true when the component differs from what gl already has
+        public boolean store(int component, int value)
+        {
+            boolean changed = !this.valid || this.shadow[component] != value;
+            this.shadow[component] = value;
+            return changed;
+        }
 
-            IntBuffer success = BufferUtils.createIntBuffer(1);
-            glGetShaderiv(this.handle, GL_COMPILE_STATUS, success);
-            if (success.get(0) == GL_FALSE)
-            {
-                this.lastError = glGetShaderInfoLog(this.handle);
-            }
+        public boolean store(int component, float value)
+        {
+            return store(component, Float.floatToRawIntBits(value));
         }
 
-        private StringBuilder getSourceWithDirective(String source) throws RuntimeException
+        public boolean store(float[] values, int count)
         {
-            int versionPos = source.indexOf("#version");
-            if (versionPos == -1)
+            boolean changed = false;
+            for (int i = 0; i < count; i++)
             {
-                throw new RuntimeException("No #version directive found in shader");
+                changed |= store(i, values[i]);
             }
-
-            int versionEnd = source.indexOf("\n", versionPos) == -1 ? source.length() : versionPos + 1;
-
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(source, 0, versionPos);
-            stringBuilder.append("#define ");
-            stringBuilder.append(this.stage.directive);
-            stringBuilder.append('\n');
-            stringBuilder.append(source, versionEnd, source.length());
-            return stringBuilder;
+            return changed;
         }
 
-        private static String getShaderSource(String fileName)
+        public boolean commit(boolean changed)
         {
-            StringBuilder stringBuilder = new StringBuilder();
-            String source;
+            this.valid = true;
+            return changed;
+        }
 
-            try
+        private static int componentCount(int type)
+        {
+            switch (type)
             {
-                InputStream inputStream = Shader.class.getClassLoader().getResourceAsStream(fileName);
-
-                assert inputStream != null;
-                Scanner scanner = new Scanner(inputStream);
-                while (scanner.hasNextLine())
+                case GL_FLOAT_VEC2:
+                case GL_INT_VEC2:
+                case GL_BOOL_VEC2:
                 {
-                    stringBuilder.append(scanner.nextLine());
+                    return 2;
+                }
+                case GL_FLOAT_VEC3:
+                case GL_INT_VEC3:
+                case GL_BOOL_VEC3:
+                {
+                    return 3;
+                }
+                case GL_FLOAT_VEC4:
+                case GL_INT_VEC4:
+                case GL_BOOL_VEC4:
+                case GL_FLOAT_MAT2:
+                {
+                    return 4;
+                }
+                case GL_FLOAT_MAT3:
+                {
+                    return 9;
+                }
+                case GL_FLOAT_MAT4:
+                {
+                    return 16;
+                }
+                default:
+                {
+                    return 1;
                 }
-                scanner.close();
-
-                source = stringBuilder.toString();
-                stringBuilder.delete(0, stringBuilder.length());
-            }
-            catch (NullPointerException e)
-            {
-                throw new RuntimeException(e);
             }
-            return source;
         }
     }
 
+    private static ProgramBinaryCache binaryCache;
+
     public String lastError;
 
     private final List<SubShader> shaders;
     private int handle;
+    private boolean restored;
+    private long linkStart;
+
+    private final List<Uniform> uniforms;
+    private final Map<String, Integer> uniformHandles;
+    private final float[] scratch = new float[16];
+
+    // Programs linked after this is set are restored from and saved to the cache, null disables it
+    public static void setBinaryCache(ProgramBinaryCache cache)
+    {
+        binaryCache = cache;
+    }
+
+    public static ProgramBinaryCache getBinaryCache()
+    {
+        return binaryCache;
+    }
 
     public Shader(String fileName)
     {
-        this.shaders = new ArrayList<>();
+        this(fileName, List.of());
+    }
+
+    public Shader(String fileName, Collection<String> keywords)
+    {
+        this(loadStages(fileName, keywords));
+
+        this.submit();
+        this.finish();
+    }
+
+    // Takes stages that are already preprocessed, linking is left to the caller
+    Shader(List<SubShader> shaders)
+    {
+        this.shaders = shaders;
+        this.uniforms = new ArrayList<>();
+        this.uniformHandles = new HashMap<>();
         this.handle = 0;
         this.lastError = "";
+    }
+
+    static List<SubShader> loadStages(String fileName, Collection<String> keywords)
+    {
+        List<SubShader> stages = new ArrayList<>();
+        for (EShaderStage stage : EShaderStage.values())
+        {
+            if (stage == EShaderStage.Undefined)
+            {
+                continue;
+            }
 
-        this.load(fileName);
-        this.link();
+            stages.add(new SubShader(stage, fileName, keywords));
+        }
+
+        return stages;
     }
 
     public void bind() throws RuntimeException
@@ -165,120 +280,396 @@ public class Shader
             throw new RuntimeException("Invalid Shader Program!");
         }
 
-        glUseProgram(this.handle);
+        GlState.useProgram(this.handle);
+    }
+
+    public int getHandle()
+    {
+        return this.handle;
+    }
+
+    // Deletes the program, and the shader objects too if a failed link left them behind
+    public void destroy()
+    {
+        for (SubShader shader : this.shaders)
+        {
+            if (shader.handle != 0)
+            {
+                glDeleteShader(shader.handle);
+                shader.handle = 0;
+            }
+        }
+
+        if (this.handle != 0)
+        {
+            GlState.deleteProgram(this.handle);
+            this.handle = 0;
+        }
     }
 
     public void set(String name, int value) throws RuntimeException
     {
-        glUniform1i(getUniformValidated(name), value);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, float value) throws RuntimeException
     {
-        glUniform1f(getUniformValidated(name), value);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Vector2f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(2);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniform2fv);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Vector3f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(3);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniform2fv);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Vector4f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(4);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniform4fv);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Matrix2f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(4);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniformMatrix2fv);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Matrix3f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(9);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniformMatrix3fv);
+        set(getUniformHandleValidated(name), value);
     }
 
     public void set(String name, Matrix4f value) throws RuntimeException
     {
-        FloatBuffer floatBuffer = BufferUtils.createFloatBuffer(16);
-        value.get(floatBuffer);
-        set(name, floatBuffer, GL20::glUniformMatrix4fv);
+        set(getUniformHandleValidated(name), value);
+    }
+
+    public void set(int uniformHandle, int value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        if (uniform.commit(uniform.store(0, value)))
+        {
+            glUniform1i(uniform.location, value);
+        }
+    }
+
+    public void set(int uniformHandle, float value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        if (uniform.commit(uniform.store(0, value)))
+        {
+            glUniform1f(uniform.location, value);
+        }
+    }
+
+    public void set(int uniformHandle, Vector2f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        if (uniform.commit(uniform.store(0, value.x) | uniform.store(1, value.y)))
+        {
+            glUniform2f(uniform.location, value.x, value.y);
+        }
+    }
+
+    public void set(int uniformHandle, Vector3f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        if (uniform.commit(uniform.store(0, value.x) | uniform.store(1, value.y) | uniform.store(2, value.z)))
+        {
+            glUniform3f(uniform.location, value.x, value.y, value.z);
+        }
+    }
+
+    public void set(int uniformHandle, Vector4f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        if (uniform.commit(uniform.store(0, value.x) | uniform.store(1, value.y) | uniform.store(2, value.z) | uniform.store(3, value.w)))
+        {
+            glUniform4f(uniform.location, value.x, value.y, value.z, value.w);
+        }
+    }
+
+    public void set(int uniformHandle, Matrix2f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        value.get(this.scratch);
+        if (uniform.commit(uniform.store(this.scratch, 4)))
+        {
+            setMatrix(uniform, this.scratch, 4, GL20::glUniformMatrix2fv);
+        }
+    }
+
+    public void set(int uniformHandle, Matrix3f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        value.get(this.scratch);
+        if (uniform.commit(uniform.store(this.scratch, 9)))
+        {
+            setMatrix(uniform, this.scratch, 9, GL20::glUniformMatrix3fv);
+        }
+    }
+
+    public void set(int uniformHandle, Matrix4f value) throws RuntimeException
+    {
+        Uniform uniform = getUniformValidated(uniformHandle);
+        value.get(this.scratch);
+        if (uniform.commit(uniform.store(this.scratch, 16)))
+        {
+            setMatrix(uniform, this.scratch, 16, GL20::glUniformMatrix4fv);
+        }
+    }
+
+    public void set(String name, int[] values, int count) throws RuntimeException
+    {
+        set(getUniformHandleValidated(name), values, count);
+    }
+
+    public void set(String name, float[] values, int count) throws RuntimeException
+    {
+        set(getUniformHandleValidated(name), values, count);
+    }
+
+    // Sets count elements of a uniform array in a single call, starting at the element the
+    // handle points to. Elements are registered one after another, so element i lives at
+    // uniformHandle + i, and count can't run past the end of the array
+    public void set(int uniformHandle, int[] values, int count) throws RuntimeException
+    {
+        Uniform first = getArrayValidated(uniformHandle, count);
+
+        boolean changed = false;
+        for (int i = 0; i < count; i++)
+        {
+            Uniform element = this.uniforms.get(uniformHandle + i);
+            changed |= element.commit(element.store(0, values[i]));
+        }
+
+        if (changed)
+        {
+            try (MemoryStack stack = stackPush())
+            {
+                IntBuffer intBuffer = stack.mallocInt(count);
+                intBuffer.put(values, 0, count).flip();
+                glUniform1iv(first.location, intBuffer);
+            }
+        }
+    }
+
+    public void set(int uniformHandle, float[] values, int count) throws RuntimeException
+    {
+        Uniform first = getArrayValidated(uniformHandle, count);
+
+        boolean changed = false;
+        for (int i = 0; i < count; i++)
+        {
+            Uniform element = this.uniforms.get(uniformHandle + i);
+            changed |= element.commit(element.store(0, values[i]));
+        }
+
+        if (changed)
+        {
+            try (MemoryStack stack = stackPush())
+            {
+                FloatBuffer floatBuffer = stack.mallocFloat(count);
+                floatBuffer.put(values, 0, count).flip();
+                glUniform1fv(first.location, floatBuffer);
+            }
+        }
+    }
+
+    public int getAttribute(String name)
+    {
+        return glGetAttribLocation(handle, name);
     }
 
     public int getUniform(String name)
     {
-        return glGetUniformLocation(handle, name);
+        int uniformHandle = getUniformHandle(name);
+        return uniformHandle < 0 ? -1 : this.uniforms.get(uniformHandle).location;
+    }
+
+    // Resolves a uniform name once so hot paths can set it without any string lookups
+    public int getUniformHandle(String name)
+    {
+        Integer uniformHandle = this.uniformHandles.get(name);
+        return uniformHandle == null ? -1 : uniformHandle;
     }
 
-    private int getUniformValidated(String name) throws RuntimeException
+    private int getUniformHandleValidated(String name) throws RuntimeException
     {
         if (this.handle == 0)
         {
             throw new RuntimeException("Invalid Shader Program!");
         }
 
-        int loc = getUniform(name);
-        if (loc < 0)
+        int uniformHandle = getUniformHandle(name);
+        if (uniformHandle < 0)
         {
             throw new RuntimeException("Uniform " + name + " not found!");
         }
 
-        return loc;
+        return uniformHandle;
     }
 
-    private void set(String name, FloatBuffer buffer, BiConsumer<Integer, FloatBuffer> setter) throws RuntimeException
+    private Uniform getUniformValidated(int uniformHandle) throws RuntimeException
     {
-        setter.accept(getUniformValidated(name), buffer);
+        if (uniformHandle < 0 || uniformHandle >= this.uniforms.size())
+        {
+            throw new RuntimeException("Invalid uniform handle " + uniformHandle + "!");
+        }
+
+        return this.uniforms.get(uniformHandle);
     }
 
-    private void set(String name, FloatBuffer buffer, TriConsumer<Integer, Boolean, FloatBuffer> setter) throws RuntimeException
+    private Uniform getArrayValidated(int uniformHandle, int count) throws RuntimeException
     {
-        setter.accept(getUniformValidated(name), false, buffer);
+        Uniform first = getUniformValidated(uniformHandle);
+        if (count < 0 || count > first.elements)
+        {
+            throw new RuntimeException("Uniform " + first.name + " has " + first.elements + " elements, " + count + " were given!");
+        }
+
+        return first;
     }
 
-    private void load(String fileName)
+    // Stages the values on the thread's memory stack so no direct buffer is ever allocated
+    private void setMatrix(Uniform uniform, float[] values, int count, IntBoolObjConsumer<FloatBuffer> setter) throws RuntimeException
     {
-        for (EShaderStage stage : EShaderStage.values())
+        try (MemoryStack stack = stackPush())
         {
-            if (stage == EShaderStage.Undefined)
-            {
-                continue;
-            }
-
-            shaders.add(new SubShader(stage, fileName));
+            FloatBuffer floatBuffer = stack.mallocFloat(count);
+            floatBuffer.put(values, 0, count).flip();
+            setter.accept(uniform.location, false, floatBuffer);
         }
     }
 
-    private void link()
+    // Restores the program from the binary cache or queues its compile and link. Nothing here
+    // waits on the driver, so several programs can be submitted before any of them is finished
+    void submit()
     {
+        ProgramBinaryCache cache = binaryCache;
+        if (cache != null)
+        {
+            this.handle = cache.load(this.shaders);
+            if (this.handle != 0)
+            {
+                this.restored = true;
+                return;
+            }
+        }
+
+        this.linkStart = System.nanoTime();
+
         this.handle = glCreateProgram();
         for (SubShader shader : this.shaders)
         {
+            shader.compile();
             glAttachShader(this.handle, shader.handle);
         }
 
+        if (cache != null)
+        {
+            cache.prepare(this.handle);
+        }
+
         glLinkProgram(this.handle);
+    }
+
+    // Waits for the link to complete, then records errors or stores the binary
+    boolean finish()
+    {
+        if (!this.restored)
+        {
+            for (SubShader shader : this.shaders)
+            {
+                if (!shader.checkStatus())
+                {
+                    this.lastError = shader.lastError;
+                }
+            }
 
-        IntBuffer success = BufferUtils.createIntBuffer(1);
-        glGetShaderiv(this.handle, GL_COMPILE_STATUS, success);
-        if (success.get(0) == GL_FALSE)
+            if (glGetProgrami(this.handle, GL_LINK_STATUS) == GL_FALSE)
+            {
+                this.lastError = glGetProgramInfoLog(this.handle);
+                return false;
+            }
+
+            for (SubShader shader : this.shaders)
+            {
+                glDetachShader(this.handle, shader.handle);
+                glDeleteShader(shader.handle);
+                shader.handle = 0;
+            }
+
+            ProgramBinaryCache cache = binaryCache;
+            if (cache != null)
+            {
+                cache.store(this.shaders, this.handle, System.nanoTime() - this.linkStart);
+            }
+        }
+
+        introspect();
+        return true;
+    }
+
+    private void introspect()
+    {
+        this.uniforms.clear();
+        this.uniformHandles.clear();
+
+        int count = glGetProgrami(this.handle, GL_ACTIVE_UNIFORMS);
+
+        try (MemoryStack stack = stackPush())
         {
-            this.lastError = glGetShaderInfoLog(this.handle);
+            IntBuffer size = stack.mallocInt(1);
+            IntBuffer type = stack.mallocInt(1);
+
+            for (int i = 0; i < count; i++)
+            {
+                String name = glGetActiveUniform(this.handle, i, size, type);
+
+                // Arrays are reported once as "name[0]", so register every element as well as the bare name
+                if (name.endsWith("[0]"))
+                {
+                    String base = name.substring(0, name.length() - 3);
+                    int first = this.uniforms.size();
+                    for (int element = 0; element < size.get(0); element++)
+                    {
+                        String elementName = base + "[" + element + "]";
+                        addUniform(elementName, glGetUniformLocation(this.handle, elementName), type.get(0));
+                    }
+
+                    int length = this.uniforms.size() - first;
+                    for (int element = 0; element < length; element++)
+                    {
+                        this.uniforms.get(first + element).elements = length - element;
+                    }
+
+                    // Nothing to alias when the first element has no location
+                    Integer baseHandle = this.uniformHandles.get(name);
+                    if (baseHandle != null)
+                    {
+                        this.uniformHandles.put(base, baseHandle);
+                    }
+                }
+                else
+                {
+                    addUniform(name, glGetUniformLocation(this.handle, name), type.get(0));
+                }
+            }
         }
     }
+
+    private void addUniform(String name, int location, int type)
+    {
+        if (location < 0)
+        {
+            return;
+        }
+
+        this.uniformHandles.put(name, this.uniforms.size());
+        this.uniforms.add(new Uniform(name, location, type));
+    }
 }
@@ -0,0 +1,247 @@
+package net.james.game.rendering;
+
+import net.james.game.core.AssetArchive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resolves #include "file" directives and collects the keywords declared with
+// #pragma variants NAME... Parsed files are cached, so every file is read once no
+// matter how many variants or stages include it. Safe to call from any thread.
+public final class ShaderPreprocessor
+{
+    private static final String INCLUDE = "#include";
+    private static final String VARIANTS = "#pragma variants";
+
+    // A parsed file: chunks[i] is followed by the contents of includes[i]
+    private record Fragment(List<String> chunks, List<String> includes, List<String> keywords)
+    {
+    }
+
+    private static final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+
+    private ShaderPreprocessor()
+    {
+    }
+
+    // Returns the fully expanded source for one stage with the stage directive and the
+    // enabled keywords defined straight after #version
+    public static String process(String fileName, Shader.EShaderStage stage, Collection<String> keywords) throws RuntimeException
+    {
+        StringBuilder expanded = new StringBuilder();
+        expand(fileName, expanded, new ArrayDeque<>());
+
+        int versionPos = expanded.indexOf("#version");
+        if (versionPos == -1)
+        {
+            throw new RuntimeException("No #version directive found in shader " + fileName);
+        }
+
+        int versionEnd = expanded.indexOf("\n", versionPos);
+        versionEnd = versionEnd == -1 ? expanded.length() : versionEnd + 1;
+
+        StringBuilder defines = new StringBuilder();
+        if (versionEnd == expanded.length() && expanded.charAt(versionEnd - 1) != '\n')
+        {
+            defines.append('\n');
+        }
+
+        defines.append("#define ").append(stage.directive).append(" 1\n");
+
+        // Sorted so the same set of keywords always produces the same source, which keeps the binary cache hitting
+        for (String keyword : new TreeSet<>(keywords))
+        {
+            defines.append("#define ").append(keyword).append(" 1\n");
+        }
+
+        expanded.insert(versionEnd, defines);
+        return expanded.toString();
+    }
+
+    // Every keyword declared by the file or anything it includes, in declaration order
+    public static List<String> getKeywords(String fileName)
+    {
+        Set<String> keywords = new LinkedHashSet<>();
+        collectKeywords(fileName, keywords, new ArrayDeque<>());
+        return new ArrayList<>(keywords);
+    }
+
+    public static void clearCache()
+    {
+        fragments.clear();
+    }
+
+    private static void expand(String fileName, StringBuilder out, Deque<String> includeStack) throws RuntimeException
+    {
+        if (includeStack.contains(fileName))
+        {
+            throw new RuntimeException("Recursive #include of " + fileName + " from " + includeStack.peek());
+        }
+
+        includeStack.push(fileName);
+
+        Fragment fragment = getFragment(fileName);
+        for (int i = 0; i < fragment.chunks().size(); i++)
+        {
+            out.append(fragment.chunks().get(i));
+            if (i < fragment.includes().size())
+            {
+                expand(fragment.includes().get(i), out, includeStack);
+            }
+        }
+
+        includeStack.pop();
+    }
+
+    private static void collectKeywords(String fileName, Set<String> keywords, Deque<String> includeStack) throws RuntimeException
+    {
+        if (includeStack.contains(fileName))
+        {
+            throw new RuntimeException("Recursive #include of " + fileName + " from " + includeStack.peek());
+        }
+
+        includeStack.push(fileName);
+
+        Fragment fragment = getFragment(fileName);
+        keywords.addAll(fragment.keywords());
+        for (String include : fragment.includes())
+        {
+            collectKeywords(include, keywords, includeStack);
+        }
+
+        includeStack.pop();
+    }
+
+    private static Fragment getFragment(String fileName)
+    {
+        // Not computeIfAbsent, parsing never recurses but two threads racing on the same
+        // file is harmless and cheaper than holding the map's bin lock during file IO
+        Fragment fragment = fragments.get(fileName);
+        if (fragment == null)
+        {
+            fragment = parse(fileName);
+            Fragment existing = fragments.putIfAbsent(fileName, fragment);
+            if (existing != null)
+            {
+                fragment = existing;
+            }
+        }
+
+        return fragment;
+    }
+
+    private static Fragment parse(String fileName) throws RuntimeException
+    {
+        List<String> chunks = new ArrayList<>();
+        List<String> includes = new ArrayList<>();
+        List<String> keywords = new ArrayList<>();
+
+        StringBuilder chunk = new StringBuilder();
+        for (String line : read(fileName).split("\r?\n", -1))
+        {
+            String trimmed = line.strip();
+
+            if (trimmed.startsWith(INCLUDE))
+            {
+                int open = trimmed.indexOf('"');
+                int close = trimmed.lastIndexOf('"');
+                if (open == -1 || close <= open)
+                {
+                    throw new RuntimeException("Malformed #include in " + fileName + ": " + trimmed);
+                }
+
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+                includes.add(resolve(fileName, trimmed.substring(open + 1, close)));
+                continue;
+            }
+
+            if (trimmed.startsWith(VARIANTS))
+            {
+                for (String keyword : trimmed.substring(VARIANTS.length()).strip().split("\\s+"))
+                {
+                    if (!keyword.isEmpty())
+                    {
+                        keywords.add(keyword);
+                    }
+                }
+                continue;
+            }
+
+            chunk.append(line).append('\n');
+        }
+
+        chunks.add(chunk.toString());
+        return new Fragment(chunks, includes, keywords);
+    }
+
+    // Include paths are relative to the including file, like in C
+    private static String resolve(String fileName, String include)
+    {
+        Deque<String> parts = new ArrayDeque<>();
+
+        int slash = fileName.lastIndexOf('/');
+        String path = slash == -1 ? include : fileName.substring(0, slash + 1) + include;
+        for (String part : path.split("/"))
+        {
+            if (part.isEmpty() || part.equals("."))
+            {
+                continue;
+            }
+
+            if (part.equals("..") && !parts.isEmpty())
+            {
+                parts.removeLast();
+                continue;
+            }
+
+            parts.addLast(part);
+        }
+
+        return String.join("/", parts);
+    }
+
+    // Packed sources come from the mounted asset archive, anything else from the classpath
+    private static String read(String fileName) throws RuntimeException
+    {
+        AssetArchive archive = AssetArchive.getMounted();
+        ByteBuffer packed = archive != null ? archive.get(fileName) : null;
+        if (packed != null)
+        {
+            try
+            {
+                return StandardCharsets.UTF_8.decode(packed).toString();
+            }
+            finally
+            {
+                archive.release(packed);
+            }
+        }
+
+        try (InputStream inputStream = Shader.class.getClassLoader().getResourceAsStream(fileName))
+        {
+            if (inputStream == null)
+            {
+                throw new RuntimeException("Shader source " + fileName + " not found");
+            }
+
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+}
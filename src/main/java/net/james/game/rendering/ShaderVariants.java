@@ -0,0 +1,126 @@
+package net.james.game.rendering;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.opengl.ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB;
+import static org.lwjgl.opengl.GL.getCapabilities;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR;
+
+// Builds every permutation of the keywords a shader file declares with #pragma variants.
+// Sources are preprocessed on the common pool and every program is submitted to the driver
+// before any of them is waited on, so drivers with parallel shader compile build them concurrently
+public class ShaderVariants
+{
+    private final List<String> keywords;
+    private final Map<Set<String>, Shader> variants;
+
+    public ShaderVariants(String fileName) throws RuntimeException
+    {
+        this.keywords = ShaderPreprocessor.getKeywords(fileName);
+        this.variants = new HashMap<>();
+
+        enableParallelCompile();
+
+        int count = 1 << this.keywords.size();
+        List<Set<String>> permutations = new ArrayList<>(count);
+        List<CompletableFuture<List<Shader.SubShader>>> sources = new ArrayList<>(count);
+        for (int mask = 0; mask < count; mask++)
+        {
+            Set<String> permutation = getPermutation(mask);
+            permutations.add(permutation);
+            sources.add(CompletableFuture.supplyAsync(() -> Shader.loadStages(fileName, permutation)));
+        }
+
+        List<Shader> shaders = new ArrayList<>(count);
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Shader shader = new Shader(sources.get(i).join());
+                shaders.add(shader);
+                shader.submit();
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                Shader shader = shaders.get(i);
+                if (!shader.finish())
+                {
+                    throw new RuntimeException("Failed to link " + fileName + " " + permutations.get(i) + ": " + shader.lastError);
+                }
+
+                this.variants.put(permutations.get(i), shader);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // The set is all or nothing, so every program submitted so far goes
+            for (Shader shader : shaders)
+            {
+                shader.destroy();
+            }
+            this.variants.clear();
+            throw e;
+        }
+    }
+
+    public List<String> getKeywords()
+    {
+        return this.keywords;
+    }
+
+    public Shader get(String... keywords) throws RuntimeException
+    {
+        // Repeating a keyword is allowed, so no Set.of
+        Shader shader = this.variants.get(new HashSet<>(Arrays.asList(keywords)));
+        if (shader == null)
+        {
+            throw new RuntimeException("No variant with keywords " + String.join(", ", keywords));
+        }
+
+        return shader;
+    }
+
+    public Collection<Shader> getAll()
+    {
+        return this.variants.values();
+    }
+
+    private Set<String> getPermutation(int mask)
+    {
+        List<String> enabled = new ArrayList<>();
+        for (int bit = 0; bit < this.keywords.size(); bit++)
+        {
+            if ((mask & (1 << bit)) != 0)
+            {
+                enabled.add(this.keywords.get(bit));
+            }
+        }
+
+        return Set.copyOf(enabled);
+    }
+
+    private static void enableParallelCompile()
+    {
+        // 0xffffffff lets the driver pick as many compiler threads as it likes
+        GLCapabilities caps = getCapabilities();
+        if (caps.GL_KHR_parallel_shader_compile)
+        {
+            glMaxShaderCompilerThreadsKHR(0xffffffff);
+        }
+        else if (caps.GL_ARB_parallel_shader_compile)
+        {
+            glMaxShaderCompilerThreadsARB(0xffffffff);
+        }
+    }
+}
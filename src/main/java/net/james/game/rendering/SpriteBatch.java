@@ -0,0 +1,191 @@
+package net.james.game.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+public class SpriteBatch
+{
+    // Interleaved vertex: x, y and depth as floats, uv as two signed shorts in fixed point,
+    // color as four normalized unsigned bytes in RGBA order and the texture slot as a byte
+    // followed by three bytes of padding to keep the next vertex 4-byte aligned.
+    // The uv steps are 1/UV_SCALE, exact for textures up to 4096 pixels. That covers uvs in
+    // [-8, 8), enough for repeating and flipped sprites, anything past it is clamped
+    public static final int VERTEX_STRIDE = 24;
+    public static final int POSITION_OFFSET = 0;
+    public static final int TEXCOORD_OFFSET = 12;
+    public static final int COLOR_OFFSET = 16;
+    public static final int TEXTURE_OFFSET = 20;
+    public static final int INDEX_STRIDE = Integer.BYTES;
+    public static final float UV_SCALE = 4096;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    // One native block for the vertices and one for the indices, each goes to the GPU with a single memcpy
+    private long vertices;
+    private long indices;
+
+    private int vertexCapacity;
+    private int indexCapacity;
+
+    private int vertexCount;
+    private int indexCount;
+
+    public SpriteBatch(int initialSprites)
+    {
+        if (initialSprites <= 0)
+        {
+            throw new IllegalArgumentException("Sprite batch capacity must be positive.");
+        }
+
+        this.vertexCapacity = initialSprites * 4;
+        this.indexCapacity = initialSprites * 6;
+
+        this.vertices = nmemAllocChecked((long) this.vertexCapacity * VERTEX_STRIDE);
+        this.indices = nmemAllocChecked((long) this.indexCapacity * INDEX_STRIDE);
+    }
+
+    public void clear()
+    {
+        this.vertexCount = 0;
+        this.indexCount = 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.indexCount == 0;
+    }
+
+    public int vertexCount()
+    {
+        return this.vertexCount;
+    }
+
+    public int indexCount()
+    {
+        return this.indexCount;
+    }
+
+    public void ensureCapacity(int extraVertices, int extraIndices)
+    {
+        if (this.vertexCount + extraVertices > this.vertexCapacity)
+        {
+            int capacity = Math.max(this.vertexCapacity * 2, this.vertexCount + extraVertices);
+
+            this.vertices = nmemReallocChecked(this.vertices, (long) capacity * VERTEX_STRIDE);
+            this.vertexCapacity = capacity;
+        }
+
+        if (this.indexCount + extraIndices > this.indexCapacity)
+        {
+            int capacity = Math.max(this.indexCapacity * 2, this.indexCount + extraIndices);
+
+            this.indices = nmemReallocChecked(this.indices, (long) capacity * INDEX_STRIDE);
+            this.indexCapacity = capacity;
+        }
+    }
+
+    // color is packed like Color, red in the top byte. u and v are clamped to [-8, 8)
+    public int vertex(float x, float y, float depth, int textureSlot, int color, float u, float v)
+    {
+        ensureCapacity(1, 0);
+
+        int index = this.vertexCount++;
+
+        long vertex = this.vertices + (long) index * VERTEX_STRIDE;
+        memPutFloat(vertex + POSITION_OFFSET, x);
+        memPutFloat(vertex + POSITION_OFFSET + 4, y);
+        memPutFloat(vertex + POSITION_OFFSET + 8, depth);
+        memPutShort(vertex + TEXCOORD_OFFSET, toFixed(u));
+        memPutShort(vertex + TEXCOORD_OFFSET + 2, toFixed(v));
+        memPutInt(vertex + COLOR_OFFSET, LITTLE_ENDIAN ? Integer.reverseBytes(color) : color);
+        memPutByte(vertex + TEXTURE_OFFSET, (byte) textureSlot);
+
+        return index;
+    }
+
+    public void quad(int first)
+    {
+        ensureCapacity(0, 6);
+
+        long index = this.indices + (long) this.indexCount * INDEX_STRIDE;
+        memPutInt(index, first);
+        memPutInt(index + 4, first + 1);
+        memPutInt(index + 8, first + 2);
+        memPutInt(index + 12, first);
+        memPutInt(index + 16, first + 2);
+        memPutInt(index + 20, first + 3);
+
+        this.indexCount += 6;
+    }
+
+    public void addQuad(float x, float y, float w, float h, float depth, int textureSlot, int color,
+                        float u, float v, float uw, float vh)
+    {
+        ensureCapacity(4, 6);
+
+        int first = vertex(x, y, depth, textureSlot, color, u, v + vh);
+        vertex(x + w, y, depth, textureSlot, color, u + uw, v + vh);
+        vertex(x + w, y + h, depth, textureSlot, color, u + uw, v);
+        vertex(x, y + h, depth, textureSlot, color, u, v);
+
+        quad(first);
+    }
+
+    // Same as addQuad but turned by rotation radians around the quad's centre
+    public void addQuad(float x, float y, float w, float h, float depth, float rotation, int textureSlot, int color,
+                        float u, float v, float uw, float vh)
+    {
+        if (rotation == 0)
+        {
+            addQuad(x, y, w, h, depth, textureSlot, color, u, v, uw, vh);
+            return;
+        }
+
+        ensureCapacity(4, 6);
+
+        float sin = (float) Math.sin(rotation);
+        float cos = (float) Math.cos(rotation);
+        float centerX = x + w * 0.5f;
+        float centerY = y + h * 0.5f;
+
+        // Half extents along the rotated x and y axes
+        float xx = cos * w * 0.5f, xy = sin * w * 0.5f;
+        float yx = -sin * h * 0.5f, yy = cos * h * 0.5f;
+
+        int first = vertex(centerX - xx - yx, centerY - xy - yy, depth, textureSlot, color, u, v + vh);
+        vertex(centerX + xx - yx, centerY + xy - yy, depth, textureSlot, color, u + uw, v + vh);
+        vertex(centerX + xx + yx, centerY + xy + yy, depth, textureSlot, color, u + uw, v);
+        vertex(centerX - xx + yx, centerY - xy + yy, depth, textureSlot, color, u, v);
+
+        quad(first);
+    }
+
+    public ByteBuffer vertices()
+    {
+        return memByteBuffer(this.vertices, this.vertexCount * VERTEX_STRIDE);
+    }
+
+    public ByteBuffer indices()
+    {
+        return memByteBuffer(this.indices, this.indexCount * INDEX_STRIDE);
+    }
+
+    public void destroy()
+    {
+        nmemFree(this.vertices);
+        nmemFree(this.indices);
+
+        this.vertices = NULL;
+        this.indices = NULL;
+        this.vertexCapacity = 0;
+        this.indexCapacity = 0;
+        clear();
+    }
+
+    private static short toFixed(float value)
+    {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value * UV_SCALE)));
+    }
+}
@@ -0,0 +1,297 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Rectangle;
+import org.joml.Vector2f;
+
+import java.util.Arrays;
+
+// Records sprites away from the GL thread. Each list keeps its own queue and its own off-heap
+// vertex (or instance) data, and end() sorts it and generates the vertices on the calling thread,
+// so systems can fill one list per worker in parallel. The finished lists are handed to
+// Renderer2d.draw on the GL thread, which uploads them in one pass and interleaves their draws
+// by layer. A list must only be touched by one thread at a time, and the hand over to the GL
+// thread needs a happens-before edge such as joining the worker's task
+public class SpriteList
+{
+    private final RenderQueue queue;
+    private final SpriteBatch batch;
+    private final InstanceBatch instances;
+
+    private boolean recording;
+    private int color;
+    private float u, v, uw, vh;
+    private int layer;
+    private float depth;
+    private float rotation;
+
+    // Draw segments produced by end(). A segment uses at most TEXTURE_STACK_SIZE textures and
+    // one layer. first and size count indices in batched mode and instances in instanced mode
+    int segmentCount;
+    int[] segmentLayer;
+    int[] segmentFirst;
+    int[] segmentSize;
+    int[] segmentTextureCount;
+    Texture[] segmentTextures;
+
+    SpriteList(Renderer2d.ERenderMode mode, int initialSprites)
+    {
+        boolean instanced = mode == Renderer2d.ERenderMode.INSTANCED;
+
+        this.queue = new RenderQueue(initialSprites);
+        this.batch = instanced ? null : new SpriteBatch(initialSprites);
+        this.instances = instanced ? new InstanceBatch(initialSprites) : null;
+
+        allocateSegments(16);
+    }
+
+    public void begin()
+    {
+        this.recording = true;
+        this.queue.clear();
+        this.segmentCount = 0;
+        Arrays.fill(this.segmentTextures, null);
+
+        this.color = 0xffffffff;
+        this.u = 0;
+        this.v = 0;
+        this.uw = 1;
+        this.vh = 1;
+        this.layer = 0;
+        this.depth = 0;
+        this.rotation = 0;
+    }
+
+    // Sorts what was recorded and builds the vertex data, on the calling thread
+    public void end()
+    {
+        if (!this.recording)
+        {
+            return;
+        }
+
+        this.recording = false;
+        build();
+    }
+
+    public boolean isRecording()
+    {
+        return this.recording;
+    }
+
+    public int getSpriteCount()
+    {
+        return this.batch != null ? this.batch.vertexCount() / 4 : this.instances.instanceCount();
+    }
+
+    public void setRenderColor(float r, float g, float b, float a)
+    {
+        this.color = Color.pack(r, g, b, a);
+    }
+
+    public void setRenderColor(Color color)
+    {
+        this.color = color.rgba();
+    }
+
+    public void setUVRect(float uvX, float uvY, float uvWidth, float uvHeight)
+    {
+        this.u = uvX;
+        this.v = uvY;
+        this.uw = uvWidth;
+        this.vh = uvHeight;
+    }
+
+    public void setUVRect(Rectangle uvRect)
+    {
+        setUVRect(uvRect.x(), uvRect.y(), uvRect.width(), uvRect.height());
+    }
+
+    public void setLayer(int layer)
+    {
+        this.layer = layer;
+    }
+
+    public void setDepth(float depth)
+    {
+        this.depth = depth;
+    }
+
+    public void setRotation(float rotation)
+    {
+        this.rotation = rotation;
+    }
+
+    public void drawBox(Vector2f pos, Vector2f size)
+    {
+        submit(null, this.u, this.v, this.uw, this.vh, pos.x, pos.y, size.x, size.y);
+    }
+
+    public void drawSprite(Texture texture, Vector2f pos, Vector2f size)
+    {
+        submit(texture, this.u, this.v, this.uw, this.vh, pos.x, pos.y, size.x, size.y);
+    }
+
+    public void drawSprite(TextureRegion region, Vector2f pos, Vector2f size)
+    {
+        Rectangle uvRect = region.uv();
+        submit(region.texture(), uvRect.x(), uvRect.y(), uvRect.width(), uvRect.height(), pos.x, pos.y, size.x, size.y);
+    }
+
+    // Text goes through here so a glyph costs no TextureRegion
+    void drawGlyph(Texture atlas, float x, float y, float w, float h, float u, float v, float uw, float vh)
+    {
+        submit(atlas, u, v, uw, vh, x, y, w, h);
+    }
+
+    public void destroy()
+    {
+        if (this.batch != null)
+        {
+            this.batch.destroy();
+        }
+
+        if (this.instances != null)
+        {
+            this.instances.destroy();
+        }
+    }
+
+    SpriteBatch getBatch()
+    {
+        return this.batch;
+    }
+
+    InstanceBatch getInstances()
+    {
+        return this.instances;
+    }
+
+    private void submit(Texture texture, float u, float v, float uw, float vh, float x, float y, float w, float h)
+    {
+        if (!this.recording)
+        {
+            throw new IllegalStateException("SpriteList.begin() has not been called");
+        }
+
+        long key = RenderQueue.key(this.layer, this.queue.size);
+        this.queue.add(key, texture, x, y, w, h, this.depth, this.rotation, this.color, u, v, uw, vh);
+    }
+
+    private void build()
+    {
+        RenderQueue queue = this.queue;
+        queue.sort();
+
+        if (this.batch != null)
+        {
+            this.batch.clear();
+        }
+        else
+        {
+            this.instances.clear();
+        }
+
+        for (int i = 0; i < queue.size; i++)
+        {
+            int item = queue.order[i];
+            int layer = RenderQueue.layer(queue.keys[item]);
+
+            if (this.segmentCount == 0 || this.segmentLayer[this.segmentCount - 1] != layer)
+            {
+                startSegment(layer);
+            }
+
+            Texture texture = queue.textures[item];
+            int slot = texture == null ? Renderer2d.TEXTURE_STACK_SIZE : getTextureSlot(texture, layer);
+
+            if (this.batch != null)
+            {
+                this.batch.addQuad(queue.x[item], queue.y[item], queue.w[item], queue.h[item], queue.z[item], queue.rotation[item],
+                        slot, queue.color[item], queue.u[item], queue.v[item], queue.uw[item], queue.vh[item]);
+            }
+            else
+            {
+                this.instances.add(queue.x[item], queue.y[item], queue.w[item], queue.h[item], queue.z[item], queue.rotation[item],
+                        slot, queue.color[item], queue.u[item], queue.v[item], queue.uw[item], queue.vh[item]);
+            }
+        }
+
+        if (this.segmentCount > 0)
+        {
+            closeSegment();
+        }
+
+        queue.clear();
+    }
+
+    // Hands out sampler slots greedily, only starting a new segment once every slot is taken.
+    // Sprites stay in submission order, a segment only saves draws where runs share textures
+    private int getTextureSlot(Texture texture, int layer)
+    {
+        int segment = this.segmentCount - 1;
+        int base = segment * Renderer2d.TEXTURE_STACK_SIZE;
+        int count = this.segmentTextureCount[segment];
+
+        for (int i = count - 1; i >= 0; i--)
+        {
+            if (this.segmentTextures[base + i] == texture)
+            {
+                return i;
+            }
+        }
+
+        if (count == Renderer2d.TEXTURE_STACK_SIZE)
+        {
+            startSegment(layer);
+            segment = this.segmentCount - 1;
+            base = segment * Renderer2d.TEXTURE_STACK_SIZE;
+            count = 0;
+        }
+
+        this.segmentTextures[base + count] = texture;
+        this.segmentTextureCount[segment] = count + 1;
+        return count;
+    }
+
+    private void startSegment(int layer)
+    {
+        if (this.segmentCount > 0)
+        {
+            closeSegment();
+        }
+
+        if (this.segmentCount == this.segmentLayer.length)
+        {
+            allocateSegments(this.segmentCount * 2);
+        }
+
+        int segment = this.segmentCount++;
+        this.segmentLayer[segment] = layer;
+        this.segmentFirst[segment] = getPrimitiveCount();
+        this.segmentSize[segment] = 0;
+        this.segmentTextureCount[segment] = 0;
+    }
+
+    private void closeSegment()
+    {
+        int segment = this.segmentCount - 1;
+        this.segmentSize[segment] = getPrimitiveCount() - this.segmentFirst[segment];
+    }
+
+    private int getPrimitiveCount()
+    {
+        return this.batch != null ? this.batch.indexCount() : this.instances.instanceCount();
+    }
+
+    private void allocateSegments(int capacity)
+    {
+        this.segmentLayer = this.segmentLayer == null ? new int[capacity] : Arrays.copyOf(this.segmentLayer, capacity);
+        this.segmentFirst = this.segmentFirst == null ? new int[capacity] : Arrays.copyOf(this.segmentFirst, capacity);
+        this.segmentSize = this.segmentSize == null ? new int[capacity] : Arrays.copyOf(this.segmentSize, capacity);
+        this.segmentTextureCount = this.segmentTextureCount == null ? new int[capacity] : Arrays.copyOf(this.segmentTextureCount, capacity);
+
+        int textures = capacity * Renderer2d.TEXTURE_STACK_SIZE;
+        this.segmentTextures = this.segmentTextures == null ? new Texture[textures] : Arrays.copyOf(this.segmentTextures, textures);
+    }
+}
@@ -0,0 +1,251 @@
+package net.james.game.rendering;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL44.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+public class StreamBuffer
+{
+    private static final int REGION_COUNT = 3;
+    private static final int ALIGNMENT = 16;
+
+    private final boolean persistent;
+
+    private int handle;
+    private long regionSize;
+    private long mapped;
+
+    private final long[] fences = new long[REGION_COUNT];
+    private int region;
+    private long offset;
+    private boolean orphaned;
+
+    private long bytesUploaded;
+    private int syncStalls;
+    private long syncStallNanos;
+
+    public StreamBuffer(long regionSize)
+    {
+        GLCapabilities caps = GL.getCapabilities();
+
+        this.persistent = caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+        this.regionSize = regionSize;
+
+        create();
+    }
+
+    public int handle()
+    {
+        return this.handle;
+    }
+
+    public boolean isPersistent()
+    {
+        return this.persistent;
+    }
+
+    // Makes sure the next uploads totalling bytes land in one region, moving on to the
+    // next region (or growing the buffer) when the current one is too full
+    public void reserve(long bytes)
+    {
+        long needed = align(this.offset) + bytes;
+        if (this.persistent)
+        {
+            if (bytes > this.regionSize)
+            {
+                grow(bytes);
+            }
+            else if (needed > this.regionSize)
+            {
+                nextRegion();
+            }
+        }
+        else
+        {
+            if (bytes > this.regionSize)
+            {
+                this.regionSize = Math.max(this.regionSize * 2, bytes);
+                this.orphaned = false;
+            }
+            else if (needed > this.regionSize)
+            {
+                this.orphaned = false;
+            }
+
+            if (!this.orphaned)
+            {
+                // Give the driver fresh storage instead of waiting for the gpu to release the old one
+                GlState.bindBuffer(GL_COPY_WRITE_BUFFER, this.handle);
+                glBufferData(GL_COPY_WRITE_BUFFER, this.regionSize, GL_STREAM_DRAW);
+                this.orphaned = true;
+                this.offset = 0;
+            }
+        }
+    }
+
+    // Returns the byte offset of the copy for use as an attribute or index offset
+    public long upload(ByteBuffer data)
+    {
+        int size = data.remaining();
+
+        this.offset = align(this.offset);
+        long start = this.offset;
+
+        if (this.persistent)
+        {
+            start += this.region * this.regionSize;
+            memCopy(memAddress(data), this.mapped + start, size);
+        }
+        else
+        {
+            GlState.bindBuffer(GL_COPY_WRITE_BUFFER, this.handle);
+            glBufferSubData(GL_COPY_WRITE_BUFFER, start, data);
+        }
+
+        this.offset += size;
+        this.bytesUploaded += size;
+
+        return start;
+    }
+
+    // Call once the draw calls reading this frame's uploads have been issued
+    public void endFrame()
+    {
+        if (this.persistent)
+        {
+            nextRegion();
+        }
+        else
+        {
+            this.orphaned = false;
+        }
+    }
+
+    public long getBytesUploaded()
+    {
+        return this.bytesUploaded;
+    }
+
+    public int getSyncStalls()
+    {
+        return this.syncStalls;
+    }
+
+    public long getSyncStallNanos()
+    {
+        return this.syncStallNanos;
+    }
+
+    public void resetStats()
+    {
+        this.bytesUploaded = 0;
+        this.syncStalls = 0;
+        this.syncStallNanos = 0;
+    }
+
+    public void destroy()
+    {
+        for (int i = 0; i < REGION_COUNT; i++)
+        {
+            if (this.fences[i] != NULL)
+            {
+                glDeleteSync(this.fences[i]);
+                this.fences[i] = NULL;
+            }
+        }
+
+        if (this.persistent && this.mapped != NULL)
+        {
+            GlState.bindBuffer(GL_COPY_WRITE_BUFFER, this.handle);
+            glUnmapBuffer(GL_COPY_WRITE_BUFFER);
+            this.mapped = NULL;
+        }
+
+        GlState.deleteBuffer(this.handle);
+        this.handle = 0;
+    }
+
+    private void create()
+    {
+        this.handle = glGenBuffers();
+        this.region = 0;
+        this.offset = 0;
+        this.orphaned = false;
+
+        if (this.persistent)
+        {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            long size = this.regionSize * REGION_COUNT;
+
+            GlState.bindBuffer(GL_COPY_WRITE_BUFFER, this.handle);
+            glBufferStorage(GL_COPY_WRITE_BUFFER, size, flags);
+
+            ByteBuffer buffer = glMapBufferRange(GL_COPY_WRITE_BUFFER, 0, size, flags);
+            if (buffer == null)
+            {
+                throw new RuntimeException("Unable to map stream buffer.");
+            }
+
+            this.mapped = memAddress(buffer);
+        }
+    }
+
+    private void nextRegion()
+    {
+        this.fences[this.region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        this.region = (this.region + 1) % REGION_COUNT;
+        this.offset = 0;
+
+        waitForRegion(this.region);
+    }
+
+    private void waitForRegion(int index)
+    {
+        long fence = this.fences[index];
+        if (fence == NULL)
+        {
+            return;
+        }
+
+        // Only count it as a stall if the gpu hasn't already finished with the region
+        int status = glClientWaitSync(fence, 0, 0);
+        if (status == GL_TIMEOUT_EXPIRED)
+        {
+            long start = System.nanoTime();
+            do
+            {
+                status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000);
+            }
+            while (status == GL_TIMEOUT_EXPIRED);
+
+            this.syncStalls++;
+            this.syncStallNanos += System.nanoTime() - start;
+        }
+
+        glDeleteSync(fence);
+        this.fences[index] = NULL;
+    }
+
+    private void grow(long bytes)
+    {
+        for (int i = 0; i < REGION_COUNT; i++)
+        {
+            waitForRegion(i);
+        }
+
+        destroy();
+
+        this.regionSize = Math.max(this.regionSize * 2, bytes);
+        create();
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
@@ -0,0 +1,141 @@
+package net.james.game.rendering;
+
+// Text laid out with one font: its codepoints and the pen position of each, with kerning and
+// line breaks applied. set() only lays the text out again when it differs from what the run
+// already holds, and reuses its arrays, so a run kept across frames costs nothing while its
+// text stays the same and allocates nothing once its arrays are big enough
+public class TextRun
+{
+    private final Font font;
+
+    private char[] text = new char[16];
+    private int textLength;
+
+    int length;
+    int[] codepoints = new int[16];
+    float[] penX = new float[16];
+    float[] penY = new float[16];
+
+    private float width;
+    private float height;
+
+    public TextRun(Font font)
+    {
+        this.font = font;
+    }
+
+    public Font getFont()
+    {
+        return this.font;
+    }
+
+    // Returns whether the text changed and had to be laid out again
+    public boolean set(CharSequence text)
+    {
+        if (equalsText(text))
+        {
+            return false;
+        }
+
+        int count = text.length();
+        if (this.text.length < count)
+        {
+            this.text = new char[Math.max(count, this.text.length * 2)];
+            this.codepoints = new int[this.text.length];
+            this.penX = new float[this.text.length];
+            this.penY = new float[this.text.length];
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            this.text[i] = text.charAt(i);
+        }
+        this.textLength = count;
+
+        layout();
+        return true;
+    }
+
+    public int length()
+    {
+        return this.length;
+    }
+
+    public float getWidth()
+    {
+        return this.width;
+    }
+
+    public float getHeight()
+    {
+        return this.height;
+    }
+
+    public String getText()
+    {
+        return new String(this.text, 0, this.textLength);
+    }
+
+    private boolean equalsText(CharSequence text)
+    {
+        if (text.length() != this.textLength)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < this.textLength; i++)
+        {
+            if (this.text[i] != text.charAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Pen positions are relative to the first baseline, lines go down
+    private void layout()
+    {
+        Font font = this.font;
+        float lineHeight = font.getLineHeight();
+        float x = 0, y = 0, widest = 0;
+        int previous = -1;
+        int count = 0;
+
+        for (int i = 0; i < this.textLength; i++)
+        {
+            int codepoint = this.text[i];
+            if (Character.isHighSurrogate(this.text[i]) && i + 1 < this.textLength && Character.isLowSurrogate(this.text[i + 1]))
+            {
+                codepoint = Character.toCodePoint(this.text[i], this.text[++i]);
+            }
+
+            if (codepoint == '\n')
+            {
+                widest = Math.max(widest, x);
+                x = 0;
+                y -= lineHeight;
+                previous = -1;
+                continue;
+            }
+
+            if (previous != -1)
+            {
+                x += font.kerning(previous, codepoint);
+            }
+
+            this.codepoints[count] = codepoint;
+            this.penX[count] = x;
+            this.penY[count] = y;
+            count++;
+
+            x += font.advance(codepoint);
+            previous = codepoint;
+        }
+
+        this.length = count;
+        this.width = Math.max(widest, x);
+        this.height = lineHeight - y;
+    }
+}
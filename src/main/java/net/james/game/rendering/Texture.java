@@ -1,16 +1,17 @@
 package net.james.game.rendering;
 
-import org.lwjgl.stb.STBImage;
+import net.james.game.core.AssetArchive;
+import org.lwjgl.system.MemoryStack;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.opengl.GL11C.*;
-import static org.lwjgl.opengl.GL13C.GL_TEXTURE0;
-import static org.lwjgl.opengl.GL13C.glActiveTexture;
 import static org.lwjgl.opengl.GL30C.GL_RG;
 import static org.lwjgl.opengl.GL30C.glGenerateMipmap;
 import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
 
 public class Texture
 {
@@ -29,6 +30,9 @@ public class Texture
         }
     }
 
+    private static TextureCache cache;
+    private static TextureManager textureManager;
+
     public int width;
     public int height;
 
@@ -38,14 +42,61 @@ public class Texture
     private ETextureFormat textureFormat;
     private ByteBuffer pixels;
 
+    // The stb copy of a loaded image is freed once it is on the GPU unless keepPixels was asked for
+    private final boolean keepPixels;
+    private boolean ownsPixels;
+    private boolean evicted;
+
+    // Residency bookkeeping, owned by the manager that tracks this texture
+    TextureManager manager;
+    long gpuBytes;
+    long cpuBytes;
+    long lastBound;
+    Texture lruPrev;
+    Texture lruNext;
+    boolean lruLinked;
+
+    // Only set while an asynchronous load is still in flight
+    private CompletableFuture<Texture> ready;
+
+    // Textures loaded from files after this is set come from the cache, null decodes every time
+    public static void setCache(TextureCache cache)
+    {
+        Texture.cache = cache;
+    }
+
+    public static TextureCache getCache()
+    {
+        return cache;
+    }
+
+    // Textures created after this is set count towards its budget, null stops tracking new ones
+    public static void setManager(TextureManager manager)
+    {
+        textureManager = manager;
+    }
+
+    public static TextureManager getManager()
+    {
+        return textureManager;
+    }
+
     public Texture(String fileName)
+    {
+        this(fileName, false);
+    }
+
+    // keepPixels holds on to the decoded image for getPixels, it also skips the texture cache
+    public Texture(String fileName, boolean keepPixels)
     {
         this.fileName = fileName;
+        this.keepPixels = keepPixels;
         load(fileName);
     }
 
     public Texture(int w, int h, ETextureFormat format, ByteBuffer pixels)
     {
+        this.keepPixels = false;
         this.width = w;
         this.height = h;
         this.textureFormat = format;
@@ -57,62 +108,64 @@ public class Texture
     {
         if (this.handle != 0)
         {
-            glDeleteTextures(this.handle);
+            GlState.deleteTexture(this.handle);
             this.width = 0;
             this.height = 0;
             this.handle = 0;
             this.fileName = "none";
         }
 
-        IntBuffer w = IntBuffer.allocate(1), h = IntBuffer.allocate(1), format = IntBuffer.allocate(1);
-        this.pixels = STBImage.stbi_load(fileName, w, h, format, STBImage.STBI_default);
+        releasePixels();
+
+        if (cache != null && !this.keepPixels && cache.load(this, fileName))
+        {
+            return;
+        }
 
-        if (this.pixels != null)
+        try (MemoryStack stack = stackPush())
         {
-            this.handle = glGenTextures();
-            glBindTexture(GL_TEXTURE_2D, this.handle);
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), channels = stack.mallocInt(1);
+            this.pixels = decode(fileName, w, h, channels);
 
-            switch (format.get())
+            if (this.pixels != null)
             {
-                case STBI_grey:
-                {
-                    textureFormat = ETextureFormat.R;
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_RED, w.get(), h.get(), 0, GL_RED, GL_UNSIGNED_INT, this.pixels);
-                    break;
-                }
-                case STBI_grey_alpha:
-                {
-                    textureFormat = ETextureFormat.RG;
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_RG, w.get(), h.get(), 0, GL_RG, GL_UNSIGNED_INT, this.pixels);
-                    break;
-                }
-                case STBI_rgb:
-                {
-                    textureFormat = ETextureFormat.RGB;
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, w.get(), h.get(), 0, GL_RGB, GL_UNSIGNED_INT, this.pixels);
-                    break;
-                }
-                case STBI_rgb_alpha:
+                this.textureFormat = ETextureFormat.values()[channels.get(0) - 1];
+                int glFormat = getGlFormat(this.textureFormat);
+
+                this.handle = glGenTextures();
+                GlState.bindTexture(this.handle);
+
+                // stb hands back tightly packed bytes, rows of R, RG and RGB aren't necessarily 4-byte aligned
+                glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+                glTexImage2D(GL_TEXTURE_2D, 0, glFormat, w.get(0), h.get(0), 0, glFormat, GL_UNSIGNED_BYTE, this.pixels);
+
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+
+                glGenerateMipmap(GL_TEXTURE_2D);
+
+                this.width = w.get(0);
+                this.height = h.get(0);
+                this.fileName = fileName;
+
+                long size = (long) this.width * this.height * this.textureFormat.index;
+                if (this.keepPixels)
                 {
-                    textureFormat = ETextureFormat.RGBA;
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, w.get(), h.get(), 0, GL_RGBA, GL_UNSIGNED_INT, this.pixels);
-                    break;
+                    this.ownsPixels = true;
                 }
-                default:
+                else
                 {
-                    break;
+                    stbi_image_free(this.pixels);
+                    this.pixels = null;
                 }
-            }
-
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-
-            glGenerateMipmap(GL_TEXTURE_2D);
-            glBindTexture(GL_TEXTURE_2D, 0);
 
-            this.width = w.get();
-            this.height = h.get();
-            this.fileName = fileName;
+                // A full mip chain adds a third
+                track(size * 4 / 3, this.ownsPixels ? size : 0, true);
+            }
+            else
+            {
+                track(0, 0, false);
+            }
         }
     }
 
@@ -120,17 +173,19 @@ public class Texture
     {
         if (this.handle != 0)
         {
-            glDeleteTextures(this.handle);
+            GlState.deleteTexture(this.handle);
             this.handle = 0;
             this.fileName = "none";
         }
 
+        releasePixels();
+
         this.width = w;
         this.height = h;
         this.textureFormat = format;
 
         this.handle = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, this.handle);
+        GlState.bindTexture(this.handle);
 
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
@@ -138,26 +193,29 @@ public class Texture
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
 
+        // Rows of R, RG and RGB bytes aren't necessarily 4-byte aligned
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
         switch (this.textureFormat)
         {
             case R:
             {
-                glTexImage2D(GL_TEXTURE_2D, 0, GL_RED, this.width, this.height, 0, GL_RED, GL_UNSIGNED_INT, pixels);
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RED, this.width, this.height, 0, GL_RED, GL_UNSIGNED_BYTE, pixels);
                 break;
             }
             case RG:
             {
-                glTexImage2D(GL_TEXTURE_2D, 0, GL_RG, this.width, this.height, 0, GL_RG, GL_UNSIGNED_INT, pixels);
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RG, this.width, this.height, 0, GL_RG, GL_UNSIGNED_BYTE, pixels);
                 break;
             }
             case RGB:
             {
-                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, this.width, this.height, 0, GL_RGB, GL_UNSIGNED_INT, pixels);
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, this.width, this.height, 0, GL_RGB, GL_UNSIGNED_BYTE, pixels);
                 break;
             }
             case RGBA:
             {
-                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_INT, pixels);
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
                 break;
             }
             default:
@@ -167,11 +225,228 @@ public class Texture
         }
 
         this.pixels = pixels;
+
+        // Made from memory, there is nothing to load it back from
+        track((long) w * h * format.index, 0, false);
+    }
+
+    public void update(int x, int y, int w, int h, ByteBuffer pixels)
+    {
+        GlState.bindTexture(this.handle);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+        switch (this.textureFormat)
+        {
+            case R:
+            {
+                glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, w, h, GL_RED, GL_UNSIGNED_BYTE, pixels);
+                break;
+            }
+            case RG:
+            {
+                glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, w, h, GL_RG, GL_UNSIGNED_BYTE, pixels);
+                break;
+            }
+            case RGB:
+            {
+                glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, w, h, GL_RGB, GL_UNSIGNED_BYTE, pixels);
+                break;
+            }
+            case RGBA:
+            {
+                glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+                break;
+            }
+            default:
+            {
+                break;
+            }
+        }
+    }
+
+    // Replaces the texture's storage with pixels read from the bound GL_PIXEL_UNPACK_BUFFER at offset
+    void define(String fileName, int w, int h, ETextureFormat format, long offset)
+    {
+        this.width = w;
+        this.height = h;
+        this.textureFormat = format;
+        this.fileName = fileName;
+
+        int glFormat = getGlFormat(format);
+
+        GlState.bindTexture(this.handle);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexImage2D(GL_TEXTURE_2D, 0, glFormat, w, h, 0, glFormat, GL_UNSIGNED_BYTE, offset);
+
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+
+        glGenerateMipmap(GL_TEXTURE_2D);
+
+        track((long) w * h * format.index * 4 / 3, 0, true);
+    }
+
+    // Takes over a texture object the cache has already filled with gpuBytes of levels
+    void setStorage(String fileName, int handle, int w, int h, ETextureFormat format, long gpuBytes)
+    {
+        this.fileName = fileName;
+        this.handle = handle;
+        this.width = w;
+        this.height = h;
+        this.textureFormat = format;
+        this.pixels = null;
+
+        track(gpuBytes, 0, true);
+    }
+
+    // Drops the GL object, bind brings it back from the file
+    void evict()
+    {
+        GlState.deleteTexture(this.handle);
+        this.handle = 0;
+        this.evicted = true;
+    }
+
+    void setReady(CompletableFuture<Texture> ready)
+    {
+        this.ready = ready;
+    }
+
+    public boolean isReady()
+    {
+        return this.ready == null || this.ready.isDone();
+    }
+
+    public CompletableFuture<Texture> whenReady()
+    {
+        return this.ready == null ? CompletableFuture.completedFuture(this) : this.ready;
+    }
+
+    // 0 while evicted, it only comes back once the texture is bound
+    public int getHandle()
+    {
+        return this.handle;
     }
 
+    public boolean isResident()
+    {
+        return !this.evicted;
+    }
+
+    // Only kept for textures loaded with keepPixels
+    public ByteBuffer getPixels()
+    {
+        return this.ownsPixels ? this.pixels : null;
+    }
+
+    public ETextureFormat getFormat()
+    {
+        return this.textureFormat;
+    }
+
+    // Binding is what the manager counts as use, an evicted texture is loaded again here
     public void bind(int slot)
     {
-        glActiveTexture(GL_TEXTURE0 + slot);
-        glBindTexture(GL_TEXTURE_2D, this.handle);
+        if (this.evicted)
+        {
+            // load binds through the active unit, make that the target so no other slot is disturbed
+            GlState.activeTexture(slot);
+            this.evicted = false;
+            load(this.fileName);
+
+            if (this.manager != null)
+            {
+                this.manager.reloaded();
+            }
+        }
+        else if (this.manager != null)
+        {
+            this.manager.touch(this);
+        }
+
+        GlState.bindTexture(slot, this.handle);
+    }
+
+    public void destroy()
+    {
+        if (this.manager != null)
+        {
+            this.manager.release(this);
+        }
+
+        GlState.deleteTexture(this.handle);
+        this.handle = 0;
+        this.evicted = false;
+        releasePixels();
+        this.pixels = null;
+    }
+
+    private void track(long gpu, long cpu, boolean evictable)
+    {
+        TextureManager manager = this.manager != null ? this.manager : textureManager;
+        if (manager != null)
+        {
+            manager.update(this, gpu, cpu, evictable && this.fileName != null && !this.fileName.equals("none"));
+        }
+    }
+
+    private void releasePixels()
+    {
+        if (this.ownsPixels)
+        {
+            stbi_image_free(this.pixels);
+            this.pixels = null;
+            this.ownsPixels = false;
+        }
+    }
+
+    // Decodes fileName from the mounted asset archive when it is packed there and from disk otherwise.
+    // Free the result with stbi_image_free
+    static ByteBuffer decode(String fileName, IntBuffer w, IntBuffer h, IntBuffer channels)
+    {
+        return decode(fileName, w, h, channels, STBI_default);
+    }
+
+    // components is stb's req_comp, STBI_default keeps what the file holds
+    static ByteBuffer decode(String fileName, IntBuffer w, IntBuffer h, IntBuffer channels, int components)
+    {
+        AssetArchive archive = AssetArchive.getMounted();
+        ByteBuffer packed = archive != null ? archive.get(fileName) : null;
+        if (packed == null)
+        {
+            return stbi_load(fileName, w, h, channels, components);
+        }
+
+        try
+        {
+            return stbi_load_from_memory(packed, w, h, channels, components);
+        }
+        finally
+        {
+            archive.release(packed);
+        }
+    }
+
+    static int getGlFormat(ETextureFormat format)
+    {
+        switch (format)
+        {
+            case R:
+            {
+                return GL_RED;
+            }
+            case RG:
+            {
+                return GL_RG;
+            }
+            case RGB:
+            {
+                return GL_RGB;
+            }
+            default:
+            {
+                return GL_RGBA;
+            }
+        }
     }
 }
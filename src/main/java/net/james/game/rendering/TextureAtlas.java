@@ -0,0 +1,255 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Rectangle;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+public class TextureAtlas
+{
+    private static final int PADDING = 1;
+
+    // One skyline packer per page. The skyline is the list of horizontal segments
+    // forming the top edge of everything packed so far
+    private static class Page
+    {
+        private record Segment(int x, int y, int width)
+        {
+        }
+
+        public final Texture texture;
+        public final List<Segment> skyline = new ArrayList<>();
+        public long usedArea;
+
+        // Result of the last successful fit
+        public int fitX;
+        public int fitY;
+
+        public Page(Texture texture)
+        {
+            this.texture = texture;
+            this.skyline.add(new Segment(0, 0, texture.width));
+        }
+
+        public boolean fit(int w, int h)
+        {
+            int bestIndex = -1;
+            int bestTop = Integer.MAX_VALUE;
+            int bestWidth = Integer.MAX_VALUE;
+
+            for (int i = 0; i < this.skyline.size(); i++)
+            {
+                int y = fitAt(i, w, h);
+                if (y < 0)
+                {
+                    continue;
+                }
+
+                // Bottom-left rule: lowest top edge first, then the narrowest segment
+                int top = y + h;
+                int segmentWidth = this.skyline.get(i).width();
+                if (top < bestTop || (top == bestTop && segmentWidth < bestWidth))
+                {
+                    bestIndex = i;
+                    bestTop = top;
+                    bestWidth = segmentWidth;
+                    this.fitX = this.skyline.get(i).x();
+                    this.fitY = y;
+                }
+            }
+
+            if (bestIndex < 0)
+            {
+                return false;
+            }
+
+            place(bestIndex, w, h);
+            return true;
+        }
+
+        // Returns the y the rectangle would rest at when its left edge starts at segment index, or -1
+        private int fitAt(int index, int w, int h)
+        {
+            int x = this.skyline.get(index).x();
+            if (x + w > this.texture.width)
+            {
+                return -1;
+            }
+
+            int y = 0;
+            int remaining = w;
+            for (int i = index; remaining > 0; i++)
+            {
+                Segment segment = this.skyline.get(i);
+                y = Math.max(y, segment.y());
+                if (y + h > this.texture.height)
+                {
+                    return -1;
+                }
+
+                remaining -= segment.width();
+            }
+
+            return y;
+        }
+
+        private void place(int index, int w, int h)
+        {
+            this.skyline.add(index, new Segment(this.fitX, this.fitY + h, w));
+
+            // Trim or remove the segments the new one now covers
+            int right = this.fitX + w;
+            for (int i = index + 1; i < this.skyline.size(); )
+            {
+                Segment segment = this.skyline.get(i);
+                if (segment.x() >= right)
+                {
+                    break;
+                }
+
+                int segmentRight = segment.x() + segment.width();
+                if (segmentRight <= right)
+                {
+                    this.skyline.remove(i);
+                }
+                else
+                {
+                    this.skyline.set(i, new Segment(right, segment.y(), segmentRight - right));
+                    break;
+                }
+            }
+
+            // Merge neighbours that ended up at the same height
+            for (int i = 0; i < this.skyline.size() - 1; )
+            {
+                Segment a = this.skyline.get(i);
+                Segment b = this.skyline.get(i + 1);
+                if (a.y() == b.y())
+                {
+                    this.skyline.set(i, new Segment(a.x(), a.y(), a.width() + b.width()));
+                    this.skyline.remove(i + 1);
+                }
+                else
+                {
+                    i++;
+                }
+            }
+
+            this.usedArea += (long) w * h;
+        }
+    }
+
+    private final int pageWidth;
+    private final int pageHeight;
+    private final List<Page> pages;
+
+    public TextureAtlas(int pageWidth, int pageHeight)
+    {
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        this.pages = new ArrayList<>();
+    }
+
+    public TextureRegion add(String fileName) throws RuntimeException
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), channels = stack.mallocInt(1);
+
+            // Pages are always RGBA, so have stb expand whatever the file holds
+            ByteBuffer pixels = Texture.decode(fileName, w, h, channels, STBI_rgb_alpha);
+            if (pixels == null)
+            {
+                throw new RuntimeException("Failed to load " + fileName + ": " + stbi_failure_reason());
+            }
+
+            try
+            {
+                return add(w.get(0), h.get(0), pixels);
+            }
+            finally
+            {
+                stbi_image_free(pixels);
+            }
+        }
+    }
+
+    // Packs an RGBA image into the first page with room for it, opening a new page if none has
+    public TextureRegion add(int w, int h, ByteBuffer pixels) throws IllegalArgumentException
+    {
+        int paddedWidth = w + PADDING * 2;
+        int paddedHeight = h + PADDING * 2;
+        if (paddedWidth > this.pageWidth || paddedHeight > this.pageHeight)
+        {
+            throw new IllegalArgumentException("Image of " + w + "x" + h + " does not fit in a " + this.pageWidth + "x" + this.pageHeight + " atlas page");
+        }
+
+        Page target = null;
+        for (Page page : this.pages)
+        {
+            if (page.fit(paddedWidth, paddedHeight))
+            {
+                target = page;
+                break;
+            }
+        }
+
+        if (target == null)
+        {
+            target = new Page(new Texture(this.pageWidth, this.pageHeight, Texture.ETextureFormat.RGBA, null));
+            this.pages.add(target);
+            target.fit(paddedWidth, paddedHeight);
+        }
+
+        int x = target.fitX + PADDING;
+        int y = target.fitY + PADDING;
+        target.texture.update(x, y, w, h, pixels);
+
+        Rectangle uv = new Rectangle(
+                (float) x / this.pageWidth,
+                (float) y / this.pageHeight,
+                (float) w / this.pageWidth,
+                (float) h / this.pageHeight
+        );
+
+        return new TextureRegion(target.texture, uv, w, h);
+    }
+
+    public int getPageCount()
+    {
+        return this.pages.size();
+    }
+
+    public Texture getPage(int page)
+    {
+        return this.pages.get(page).texture;
+    }
+
+    // Fraction of the page covered by packed images, padding included
+    public float getOccupancy(int page)
+    {
+        return (float) this.pages.get(page).usedArea / ((long) this.pageWidth * this.pageHeight);
+    }
+
+    public float getOccupancy()
+    {
+        if (this.pages.isEmpty())
+        {
+            return 0;
+        }
+
+        long used = 0;
+        for (Page page : this.pages)
+        {
+            used += page.usedArea;
+        }
+
+        return (float) used / ((long) this.pageWidth * this.pageHeight * this.pages.size());
+    }
+}
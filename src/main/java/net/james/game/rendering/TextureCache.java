@@ -0,0 +1,385 @@
+package net.james.game.rendering;
+
+import net.james.game.core.BakedFileCache;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+import static org.lwjgl.opengl.GL13C.glCompressedTexImage2D;
+import static org.lwjgl.opengl.GL12C.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL11C.*;
+import static org.lwjgl.stb.STBDXT.STB_DXT_HIGHQUAL;
+import static org.lwjgl.stb.STBDXT.stb_compress_dxt_block;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Keeps textures on disk already decoded, with every mip level, so loading one is a file map
+// and one glTexImage2D per level. RGB and RGBA images can be stored block compressed (BC1 and
+// BC3) when the driver supports S3TC, other formats and drivers get raw bytes.
+// File layout, little endian: magic, version, width, height, format, encoding, levels, 0,
+// then an offset and size per level, then the levels, each 16-byte aligned
+public class TextureCache extends BakedFileCache
+{
+    public enum ECompression
+    {
+        NONE,
+        BLOCK
+    }
+
+    private static final int MAGIC = 0x4a475458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 * Integer.BYTES;
+    private static final int ALIGNMENT = 16;
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_BC1 = 1;
+    private static final int ENCODING_BC3 = 3;
+
+    private final ECompression compression;
+    private Boolean blockSupported;
+
+    public TextureCache(Path directory)
+    {
+        this(directory, ECompression.NONE);
+    }
+
+    public TextureCache(Path directory, ECompression compression)
+    {
+        super(directory, "texture", ".tex", MAGIC, VERSION, HEADER_SIZE);
+        this.compression = compression;
+    }
+
+    @Override
+    public Path bake(String fileName) throws IOException
+    {
+        Path file = getFile(fileName, this.compression.name());
+        if (Files.isRegularFile(file))
+        {
+            return file;
+        }
+
+        ByteBuffer baked = encode(fileName, this.compression);
+        if (baked == null)
+        {
+            throw new IOException("Unable to decode " + fileName + ": " + stbi_failure_reason());
+        }
+
+        try
+        {
+            store(file, baked);
+        }
+        finally
+        {
+            memFree(baked);
+        }
+
+        return file;
+    }
+
+    // Uploads fileName into a new texture object and hands it to texture, baking it first on a
+    // miss. Returns false if the image can't be decoded
+    boolean load(Texture texture, String fileName)
+    {
+        ECompression compression = this.compression == ECompression.BLOCK && isBlockSupported() ? ECompression.BLOCK : ECompression.NONE;
+        Path file = getFile(fileName, compression.name());
+
+        ByteBuffer mapped = map(file);
+        if (mapped != null)
+        {
+            upload(texture, fileName, mapped);
+            return true;
+        }
+
+        ByteBuffer baked = encode(fileName, compression);
+        if (baked == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            tryStore(file, baked);
+            upload(texture, fileName, baked);
+        }
+        finally
+        {
+            memFree(baked);
+        }
+
+        return true;
+    }
+
+    // Every level has to be exactly as big as its size and encoding make it, or the upload would
+    // read past the file
+    @Override
+    protected boolean validate(ByteBuffer header, FileChannel channel, long size) throws IOException
+    {
+        int width = header.getInt(8), height = header.getInt(12), format = header.getInt(16);
+        int encoding = header.getInt(20), levels = header.getInt(24);
+
+        if (width <= 0 || height <= 0 || format < 0 || format >= Texture.ETextureFormat.values().length
+                || (encoding != ENCODING_RAW && encoding != ENCODING_BC1 && encoding != ENCODING_BC3)
+                || (encoding != ENCODING_RAW && format < Texture.ETextureFormat.RGB.ordinal())
+                || levels <= 0 || levels > 32 - Integer.numberOfLeadingZeros(Math.max(width, height))
+                || HEADER_SIZE + 8L * levels > size)
+        {
+            return false;
+        }
+
+        ByteBuffer table = read(channel, 8 * levels);
+        if (table.hasRemaining())
+        {
+            return false;
+        }
+
+        for (int level = 0; level < levels; level++)
+        {
+            long offset = table.getInt(level * 8) & 0xffffffffL;
+            long length = table.getInt(level * 8 + 4) & 0xffffffffL;
+            int expected = levelSize(Math.max(1, width >> level), Math.max(1, height >> level), format + 1, encoding);
+            if (length != expected || offset + length > size)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void upload(Texture texture, String fileName, ByteBuffer baked)
+    {
+        int width = baked.getInt(8);
+        int height = baked.getInt(12);
+        Texture.ETextureFormat format = Texture.ETextureFormat.values()[baked.getInt(16)];
+        int encoding = baked.getInt(20);
+        int levels = baked.getInt(24);
+
+        int handle = glGenTextures();
+        GlState.bindTexture(handle);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+        int glFormat = Texture.getGlFormat(format);
+        long gpuBytes = 0;
+        for (int level = 0; level < levels; level++)
+        {
+            int offset = baked.getInt(HEADER_SIZE + level * 8);
+            int size = baked.getInt(HEADER_SIZE + level * 8 + 4);
+            gpuBytes += size;
+            int w = Math.max(1, width >> level), h = Math.max(1, height >> level);
+            ByteBuffer data = baked.slice(offset, size);
+
+            if (encoding == ENCODING_RAW)
+            {
+                glTexImage2D(GL_TEXTURE_2D, level, glFormat, w, h, 0, glFormat, GL_UNSIGNED_BYTE, data);
+            }
+            else
+            {
+                int internal = encoding == ENCODING_BC1 ? GL_COMPRESSED_RGB_S3TC_DXT1_EXT : GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+                glCompressedTexImage2D(GL_TEXTURE_2D, level, internal, w, h, 0, data);
+            }
+        }
+
+        // Trilinear, so minified textures sample the baked levels instead of only the top one
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, levels > 1 ? GL_LINEAR_MIPMAP_LINEAR : GL_LINEAR);
+
+        texture.setStorage(fileName, handle, width, height, format, gpuBytes);
+    }
+
+    // Decodes the image and lays out the whole file in native memory, or returns null if stb can't read it
+    private static ByteBuffer encode(String fileName, ECompression compression)
+    {
+        ByteBuffer pixels;
+        int width, height, channels;
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), c = stack.mallocInt(1);
+            pixels = Texture.decode(fileName, w, h, c);
+            if (pixels == null)
+            {
+                return null;
+            }
+
+            width = w.get(0);
+            height = h.get(0);
+            channels = c.get(0);
+        }
+
+        int encoding = ENCODING_RAW;
+        if (compression == ECompression.BLOCK && channels >= 3)
+        {
+            encoding = channels == 4 ? ENCODING_BC3 : ENCODING_BC1;
+        }
+
+        int levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+        long size = align(HEADER_SIZE + 8L * levels);
+        for (int level = 0; level < levels; level++)
+        {
+            size = align(size + levelSize(Math.max(1, width >> level), Math.max(1, height >> level), channels, encoding));
+        }
+
+        ByteBuffer baked = memCalloc((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        baked.putInt(0, MAGIC);
+        baked.putInt(4, VERSION);
+        baked.putInt(8, width);
+        baked.putInt(12, height);
+        baked.putInt(16, channels - 1);
+        baked.putInt(20, encoding);
+        baked.putInt(24, levels);
+
+        // Each level is filtered down from the one before, the previous level stays in native memory
+        ByteBuffer level = pixels;
+        int offset = (int) align(HEADER_SIZE + 8L * levels);
+        for (int i = 0; i < levels; i++)
+        {
+            int w = Math.max(1, width >> i), h = Math.max(1, height >> i);
+            if (i > 0)
+            {
+                ByteBuffer smaller = downsample(level, Math.max(1, width >> (i - 1)), Math.max(1, height >> (i - 1)), w, h, channels);
+                free(level, pixels);
+                level = smaller;
+            }
+
+            int length = levelSize(w, h, channels, encoding);
+            baked.putInt(HEADER_SIZE + i * 8, offset);
+            baked.putInt(HEADER_SIZE + i * 8 + 4, length);
+
+            ByteBuffer target = baked.slice(offset, length);
+            if (encoding == ENCODING_RAW)
+            {
+                memCopy(memAddress(level), memAddress(target), length);
+            }
+            else
+            {
+                compress(level, w, h, channels, encoding == ENCODING_BC3, target);
+            }
+
+            offset = (int) align(offset + length);
+        }
+
+        free(level, pixels);
+        return baked;
+    }
+
+    // 2x2 box filter, an odd edge reuses its last row or column
+    private static ByteBuffer downsample(ByteBuffer source, int sourceWidth, int sourceHeight, int width, int height, int channels)
+    {
+        ByteBuffer target = memAlloc(width * height * channels);
+        int sourceStride = sourceWidth * channels;
+
+        for (int y = 0; y < height; y++)
+        {
+            int y0 = Math.min(y * 2, sourceHeight - 1), y1 = Math.min(y * 2 + 1, sourceHeight - 1);
+            for (int x = 0; x < width; x++)
+            {
+                int x0 = Math.min(x * 2, sourceWidth - 1), x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+                for (int c = 0; c < channels; c++)
+                {
+                    int sum = (source.get(y0 * sourceStride + x0 * channels + c) & 0xff)
+                            + (source.get(y0 * sourceStride + x1 * channels + c) & 0xff)
+                            + (source.get(y1 * sourceStride + x0 * channels + c) & 0xff)
+                            + (source.get(y1 * sourceStride + x1 * channels + c) & 0xff);
+                    target.put((y * width + x) * channels + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+
+        return target;
+    }
+
+    // stb_dxt wants 4x4 RGBA blocks, edge blocks repeat the last row and column
+    private static void compress(ByteBuffer source, int width, int height, int channels, boolean alpha, ByteBuffer target)
+    {
+        int blockSize = alpha ? 16 : 8;
+        try (MemoryStack stack = stackPush())
+        {
+            ByteBuffer block = stack.malloc(64);
+            int out = 0;
+
+            for (int by = 0; by < height; by += 4)
+            {
+                for (int bx = 0; bx < width; bx += 4)
+                {
+                    for (int i = 0; i < 16; i++)
+                    {
+                        int x = Math.min(bx + (i & 3), width - 1);
+                        int y = Math.min(by + (i >> 2), height - 1);
+                        int pixel = (y * width + x) * channels;
+
+                        block.put(i * 4, source.get(pixel));
+                        block.put(i * 4 + 1, source.get(pixel + 1));
+                        block.put(i * 4 + 2, source.get(pixel + 2));
+                        block.put(i * 4 + 3, channels == 4 ? source.get(pixel + 3) : (byte) 0xff);
+                    }
+
+                    stb_compress_dxt_block(target.slice(out, blockSize), block, alpha, STB_DXT_HIGHQUAL);
+                    out += blockSize;
+                }
+            }
+        }
+    }
+
+    private static int levelSize(int width, int height, int channels, int encoding)
+    {
+        if (encoding == ENCODING_RAW)
+        {
+            return width * height * channels;
+        }
+
+        return ((width + 3) / 4) * ((height + 3) / 4) * (encoding == ENCODING_BC3 ? 16 : 8);
+    }
+
+    private static void free(ByteBuffer level, ByteBuffer pixels)
+    {
+        if (level == pixels)
+        {
+            stbi_image_free(pixels);
+        }
+        else
+        {
+            memFree(level);
+        }
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private boolean isBlockSupported()
+    {
+        if (this.blockSupported == null)
+        {
+            GLCapabilities caps = GL.getCapabilities();
+            this.blockSupported = caps.GL_EXT_texture_compression_s3tc;
+        }
+
+        return this.blockSupported;
+    }
+
+    // Bakes ahead of time: <cache directory> <NONE|BLOCK> <images or directories of images>...
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: TextureCache <cache directory> <NONE|BLOCK> <images or directories>...");
+            System.exit(1);
+        }
+
+        TextureCache cache = new TextureCache(Path.of(args[0]), ECompression.valueOf(args[1]));
+        bakeAll(cache, args, 2, "png|jpe?g|tga|bmp|psd|gif|hdr|pic|pnm");
+    }
+}
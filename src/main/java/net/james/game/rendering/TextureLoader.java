@@ -0,0 +1,192 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Config;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+public class TextureLoader
+{
+    private record DecodedImage(Texture texture, CompletableFuture<Texture> ready, String fileName,
+                                int width, int height, Texture.ETextureFormat format, ByteBuffer pixels)
+    {
+        public long size()
+        {
+            return (long) this.width * this.height * this.format.index;
+        }
+    }
+
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<DecodedImage> decoded;
+    private final StreamBuffer uploadBuffer;
+    private final long uploadBudget;
+
+    private long bytesUploaded;
+    private int pending;
+
+    public TextureLoader(Config config)
+    {
+        this(config.textureDecodeThreads, config.textureUploadBytes);
+    }
+
+    // uploadBudget is the number of pixel bytes handed to GL per update() call
+    public TextureLoader(int threads, long uploadBudget)
+    {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "texture-decode-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.decoded = new ConcurrentLinkedQueue<>();
+        this.uploadBuffer = new StreamBuffer(uploadBudget);
+        this.uploadBudget = uploadBudget;
+    }
+
+    // Returns straight away with a 1x1 white texture that takes on the image once it has been
+    // decoded and uploaded. Use Texture.whenReady() to find out when that happens.
+    public Texture load(String fileName)
+    {
+        Texture texture = new Texture(1, 1, Texture.ETextureFormat.RGBA, null);
+        try (MemoryStack stack = stackPush())
+        {
+            texture.update(0, 0, 1, 1, stack.bytes((byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff));
+        }
+
+        CompletableFuture<Texture> ready = new CompletableFuture<>();
+        texture.setReady(ready);
+        this.pending++;
+
+        this.workers.execute(() -> decode(texture, ready, fileName));
+
+        return texture;
+    }
+
+    public int getPending()
+    {
+        return this.pending;
+    }
+
+    public long getBytesUploaded()
+    {
+        return this.bytesUploaded;
+    }
+
+    // Uploads finished images on the GL thread until the budget is spent. At least one image
+    // goes through per call so an image bigger than the budget can't block the queue.
+    public void update()
+    {
+        long budget = this.uploadBudget;
+        boolean uploaded = false;
+
+        DecodedImage image;
+        while ((image = this.decoded.peek()) != null)
+        {
+            if (image.pixels() != null && uploaded && image.size() > budget)
+            {
+                break;
+            }
+
+            this.decoded.poll();
+            this.pending--;
+
+            if (image.pixels() == null)
+            {
+                image.ready().completeExceptionally(new RuntimeException("Failed to load " + image.fileName()));
+                continue;
+            }
+
+            upload(image);
+
+            budget -= image.size();
+            uploaded = true;
+        }
+
+        if (uploaded)
+        {
+            this.uploadBuffer.endFrame();
+        }
+    }
+
+    public void destroy()
+    {
+        this.workers.shutdownNow();
+
+        DecodedImage image;
+        while ((image = this.decoded.poll()) != null)
+        {
+            if (image.pixels() != null)
+            {
+                stbi_image_free(image.pixels());
+            }
+        }
+
+        this.uploadBuffer.destroy();
+    }
+
+    // Anything that goes wrong is queued as an image without pixels, so ready always completes
+    private void decode(Texture texture, CompletableFuture<Texture> ready, String fileName)
+    {
+        ByteBuffer pixels = null;
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), channels = stack.mallocInt(1);
+
+            pixels = Texture.decode(fileName, w, h, channels);
+            Texture.ETextureFormat format = pixels == null ? null : Texture.ETextureFormat.values()[channels.get(0) - 1];
+
+            this.decoded.add(new DecodedImage(texture, ready, fileName, w.get(0), h.get(0), format, pixels));
+        }
+        catch (RuntimeException e)
+        {
+            if (pixels != null)
+            {
+                stbi_image_free(pixels);
+            }
+
+            System.err.println("Unable to decode " + fileName + ": " + e.getMessage());
+            this.decoded.add(new DecodedImage(texture, ready, fileName, 0, 0, null, null));
+        }
+    }
+
+    private void upload(DecodedImage image)
+    {
+        try
+        {
+            // The copy into the mapped stream buffer is the only CPU work, the driver
+            // pulls the pixels into the texture from there without blocking us
+            this.uploadBuffer.reserve(image.size());
+            long offset = this.uploadBuffer.upload(image.pixels());
+
+            GlState.bindBuffer(GL_PIXEL_UNPACK_BUFFER, this.uploadBuffer.handle());
+            image.texture().define(image.fileName(), image.width(), image.height(), image.format(), offset);
+        }
+        catch (RuntimeException e)
+        {
+            image.ready().completeExceptionally(new RuntimeException("Failed to upload " + image.fileName(), e));
+            return;
+        }
+        finally
+        {
+            stbi_image_free(image.pixels());
+
+            // Unbind so later pixel uploads read from client memory, not this buffer
+            GlState.bindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+
+        this.bytesUploaded += image.size();
+        image.ready().complete(image.texture());
+    }
+}
@@ -0,0 +1,225 @@
+package net.james.game.rendering;
+
+// Keeps the textures created while it is installed (Texture.setManager) under a VRAM budget.
+// Every texture's estimated GPU and CPU bytes are tracked. Textures loaded from a file can be
+// evicted: when the GPU total goes over budget, the ones bound least recently lose their GL
+// object, and Texture.bind loads them again the next time they are used, through the texture
+// cache if one is set. Textures bound in the current frame are never evicted, so a frame that
+// needs more than the budget goes over it rather than thrashing. Textures made from pixels in
+// memory can't be brought back and are only counted. GL thread only
+public class TextureManager
+{
+    private long budget;
+
+    private long gpuBytes;
+    private long cpuBytes;
+    private int textures;
+    private int resident;
+
+    // Evictable resident textures, least recently bound first
+    private Texture head;
+    private Texture tail;
+
+    private long frame;
+    private int evictions;
+    private int reloads;
+
+    public TextureManager(long budget)
+    {
+        this.budget = budget;
+    }
+
+    public long getBudget()
+    {
+        return this.budget;
+    }
+
+    public void setBudget(long budget)
+    {
+        this.budget = budget;
+        trim();
+    }
+
+    public long getGpuBytes()
+    {
+        return this.gpuBytes;
+    }
+
+    public long getCpuBytes()
+    {
+        return this.cpuBytes;
+    }
+
+    public int getTextures()
+    {
+        return this.textures;
+    }
+
+    public int getResident()
+    {
+        return this.resident;
+    }
+
+    public int getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public int getReloads()
+    {
+        return this.reloads;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TextureManager{textures=%d, resident=%d, gpu=%.1fMB/%.1fMB, cpu=%.1fMB, evictions=%d, reloads=%d}",
+                this.textures, this.resident, this.gpuBytes / 1048576.0, this.budget / 1048576.0, this.cpuBytes / 1048576.0,
+                this.evictions, this.reloads);
+    }
+
+    // Screen calls it once per frame, textures bound before this become fair game for eviction
+    public void newFrame()
+    {
+        this.frame++;
+        trim();
+    }
+
+    // A texture got new storage, or lost it when gpu is 0
+    void update(Texture texture, long gpu, long cpu, boolean evictable)
+    {
+        if (texture.manager == this)
+        {
+            this.gpuBytes -= texture.gpuBytes;
+            this.cpuBytes -= texture.cpuBytes;
+            if (texture.gpuBytes > 0)
+            {
+                this.resident--;
+            }
+            unlink(texture);
+        }
+        else
+        {
+            texture.manager = this;
+            this.textures++;
+        }
+
+        texture.gpuBytes = gpu;
+        texture.cpuBytes = cpu;
+        texture.lastBound = this.frame;
+        this.gpuBytes += gpu;
+        this.cpuBytes += cpu;
+
+        if (gpu > 0)
+        {
+            this.resident++;
+            if (evictable)
+            {
+                append(texture);
+            }
+        }
+
+        trim();
+    }
+
+    void touch(Texture texture)
+    {
+        texture.lastBound = this.frame;
+        if (texture.lruLinked && texture != this.tail)
+        {
+            unlink(texture);
+            append(texture);
+        }
+    }
+
+    void reloaded()
+    {
+        this.reloads++;
+    }
+
+    void release(Texture texture)
+    {
+        if (texture.manager != this)
+        {
+            return;
+        }
+
+        this.gpuBytes -= texture.gpuBytes;
+        this.cpuBytes -= texture.cpuBytes;
+        if (texture.gpuBytes > 0)
+        {
+            this.resident--;
+        }
+        unlink(texture);
+
+        texture.gpuBytes = 0;
+        texture.cpuBytes = 0;
+        texture.manager = null;
+        this.textures--;
+    }
+
+    private void trim()
+    {
+        Texture texture = this.head;
+        while (this.gpuBytes > this.budget && texture != null && texture.lastBound < this.frame)
+        {
+            Texture next = texture.lruNext;
+
+            unlink(texture);
+            this.gpuBytes -= texture.gpuBytes;
+            this.resident--;
+            texture.gpuBytes = 0;
+            texture.evict();
+            this.evictions++;
+
+            texture = next;
+        }
+    }
+
+    private void append(Texture texture)
+    {
+        texture.lruPrev = this.tail;
+        texture.lruNext = null;
+        if (this.tail != null)
+        {
+            this.tail.lruNext = texture;
+        }
+        else
+        {
+            this.head = texture;
+        }
+
+        this.tail = texture;
+        texture.lruLinked = true;
+    }
+
+    private void unlink(Texture texture)
+    {
+        if (!texture.lruLinked)
+        {
+            return;
+        }
+
+        if (texture.lruPrev != null)
+        {
+            texture.lruPrev.lruNext = texture.lruNext;
+        }
+        else
+        {
+            this.head = texture.lruNext;
+        }
+
+        if (texture.lruNext != null)
+        {
+            texture.lruNext.lruPrev = texture.lruPrev;
+        }
+        else
+        {
+            this.tail = texture.lruPrev;
+        }
+
+        texture.lruPrev = null;
+        texture.lruNext = null;
+        texture.lruLinked = false;
+    }
+}
@@ -0,0 +1,7 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Rectangle;
+
+public record TextureRegion(Texture texture, Rectangle uv, int width, int height)
+{
+}
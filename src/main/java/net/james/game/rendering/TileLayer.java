@@ -0,0 +1,371 @@
+package net.james.game.rendering;
+
+import net.james.game.core.Color;
+import net.james.game.core.Rectangle;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL15C.*;
+
+// A fixed grid of tiles kept on the GPU. The grid is split into square chunks with their own
+// buffer, built once and only rebuilt when a tile in them changes, so a frame costs one draw
+// per visible chunk however many tiles there are. Dirty chunks are rebuilt lazily when they are
+// next drawn, chunks off screen are neither rebuilt nor drawn. Hand it to Renderer2d.draw
+// between begin and end every frame it should show; it draws under the sprites of its layer.
+// The tiles of a layer use at most TEXTURE_STACK_SIZE textures at a time, a texture's slot is
+// freed once no tile uses it. GL thread only
+public class TileLayer
+{
+    private final boolean instanced;
+
+    private final int width;
+    private final int height;
+    private final float tileSize;
+    private final int chunkTiles;
+    private final int chunksX;
+    private final int chunksY;
+
+    private final TextureRegion[] tiles;
+    private final int[] colors;
+
+    private int layer;
+
+    // Textures by sampler slot, shared by every chunk, and how many tiles use each. Freed slots
+    // are null until reused, textureCount is one past the last slot in use
+    final Texture[] textures = new Texture[Renderer2d.TEXTURE_STACK_SIZE];
+    private final int[] textureUses = new int[Renderer2d.TEXTURE_STACK_SIZE];
+    int textureCount;
+
+    // Per chunk: the GL buffer (vertices then indices, or instances), how many indices or
+    // instances it draws and where the indices start
+    final int[] chunkBuffers;
+    final int[] chunkSizes;
+    final long[] chunkIndexOffsets;
+    private final boolean[] chunkDirty;
+
+    // Scratch for building one chunk at a time
+    private final SpriteBatch batch;
+    private final InstanceBatch instances;
+
+    private int chunksDrawn;
+    private int chunksUploaded;
+
+    TileLayer(Renderer2d.ERenderMode mode, int width, int height, float tileSize, int chunkTiles)
+    {
+        if (width <= 0 || height <= 0 || chunkTiles <= 0)
+        {
+            throw new IllegalArgumentException("Tile layer and chunk sizes must be positive.");
+        }
+
+        this.instanced = mode == Renderer2d.ERenderMode.INSTANCED;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.chunkTiles = chunkTiles;
+        this.chunksX = (width + chunkTiles - 1) / chunkTiles;
+        this.chunksY = (height + chunkTiles - 1) / chunkTiles;
+
+        this.tiles = new TextureRegion[width * height];
+        this.colors = new int[width * height];
+        Arrays.fill(this.colors, 0xffffffff);
+
+        int chunks = this.chunksX * this.chunksY;
+        this.chunkBuffers = new int[chunks];
+        this.chunkSizes = new int[chunks];
+        this.chunkIndexOffsets = new long[chunks];
+        this.chunkDirty = new boolean[chunks];
+
+        int chunkSprites = chunkTiles * chunkTiles;
+        this.batch = this.instanced ? null : new SpriteBatch(chunkSprites);
+        this.instances = this.instanced ? new InstanceBatch(chunkSprites) : null;
+    }
+
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    public float getTileSize()
+    {
+        return this.tileSize;
+    }
+
+    public void setLayer(int layer)
+    {
+        this.layer = layer;
+    }
+
+    public int getLayer()
+    {
+        return this.layer;
+    }
+
+    public TextureRegion getTile(int x, int y)
+    {
+        return this.tiles[index(x, y)];
+    }
+
+    // null clears the tile
+    public void setTile(int x, int y, TextureRegion region)
+    {
+        setTile(x, y, region, 0xffffffff);
+    }
+
+    public void setTile(int x, int y, TextureRegion region, Color color)
+    {
+        setTile(x, y, region, color.rgba());
+    }
+
+    private void setTile(int x, int y, TextureRegion region, int color)
+    {
+        int index = index(x, y);
+        if (this.tiles[index] == region && this.colors[index] == color)
+        {
+            return;
+        }
+
+        // Released first so a replaced texture's slot can go to the new one. Chunks drawn with a
+        // freed slot are all dirty, so they are rebuilt before they are drawn again
+        Texture previous = this.tiles[index] == null ? null : this.tiles[index].texture();
+        Texture next = region == null ? null : region.texture();
+        if (previous != next)
+        {
+            if (previous != null)
+            {
+                releaseTextureSlot(previous);
+            }
+
+            if (next != null)
+            {
+                try
+                {
+                    acquireTextureSlot(next);
+                }
+                catch (IllegalStateException e)
+                {
+                    // Nothing was freed, so this takes back the slot previous still has
+                    if (previous != null)
+                    {
+                        acquireTextureSlot(previous);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        this.tiles[index] = region;
+        this.colors[index] = color;
+        this.chunkDirty[(y / this.chunkTiles) * this.chunksX + x / this.chunkTiles] = true;
+    }
+
+    // Chunks drawn and rebuilt by the last Renderer2d.end this layer was part of
+    public int getChunksDrawn()
+    {
+        return this.chunksDrawn;
+    }
+
+    public int getChunksUploaded()
+    {
+        return this.chunksUploaded;
+    }
+
+    public void destroy()
+    {
+        for (int i = 0; i < this.chunkBuffers.length; i++)
+        {
+            if (this.chunkBuffers[i] != 0)
+            {
+                GlState.deleteBuffer(this.chunkBuffers[i]);
+                this.chunkBuffers[i] = 0;
+            }
+        }
+
+        if (this.batch != null)
+        {
+            this.batch.destroy();
+        }
+
+        if (this.instances != null)
+        {
+            this.instances.destroy();
+        }
+    }
+
+    // Hands out the chunks overlapping view, rebuilding dirty ones first. Returns how many
+    // chunk indices were written to visible
+    int prepare(Rectangle view, int[] visible)
+    {
+        float chunkSize = this.chunkTiles * this.tileSize;
+        int x0 = Math.max(0, (int) Math.floor(view.x() / chunkSize));
+        int y0 = Math.max(0, (int) Math.floor(view.y() / chunkSize));
+        int x1 = Math.min(this.chunksX - 1, (int) Math.floor((view.x() + view.width()) / chunkSize));
+        int y1 = Math.min(this.chunksY - 1, (int) Math.floor((view.y() + view.height()) / chunkSize));
+
+        int count = 0;
+        int uploaded = 0;
+        for (int cy = y0; cy <= y1; cy++)
+        {
+            for (int cx = x0; cx <= x1; cx++)
+            {
+                int chunk = cy * this.chunksX + cx;
+                if (this.chunkDirty[chunk])
+                {
+                    build(cx, cy);
+                    this.chunkDirty[chunk] = false;
+                    uploaded++;
+                }
+
+                if (this.chunkSizes[chunk] > 0)
+                {
+                    visible[count++] = chunk;
+                }
+            }
+        }
+
+        this.chunksDrawn = count;
+        this.chunksUploaded = uploaded;
+        return count;
+    }
+
+    int maxVisibleChunks()
+    {
+        return this.chunksX * this.chunksY;
+    }
+
+    private void build(int cx, int cy)
+    {
+        int chunk = cy * this.chunksX + cx;
+        int firstX = cx * this.chunkTiles, firstY = cy * this.chunkTiles;
+        int lastX = Math.min(this.width, firstX + this.chunkTiles);
+        int lastY = Math.min(this.height, firstY + this.chunkTiles);
+
+        if (this.instanced)
+        {
+            this.instances.clear();
+        }
+        else
+        {
+            this.batch.clear();
+        }
+
+        for (int y = firstY; y < lastY; y++)
+        {
+            for (int x = firstX; x < lastX; x++)
+            {
+                TextureRegion region = this.tiles[y * this.width + x];
+                if (region == null)
+                {
+                    continue;
+                }
+
+                int slot = findTextureSlot(region.texture());
+                int color = this.colors[y * this.width + x];
+                Rectangle uv = region.uv();
+                float px = x * this.tileSize, py = y * this.tileSize;
+
+                if (this.instanced)
+                {
+                    this.instances.add(px, py, this.tileSize, this.tileSize, 0, 0, slot, color, uv.x(), uv.y(), uv.width(), uv.height());
+                }
+                else
+                {
+                    this.batch.addQuad(px, py, this.tileSize, this.tileSize, 0, slot, color, uv.x(), uv.y(), uv.width(), uv.height());
+                }
+            }
+        }
+
+        int size = this.instanced ? this.instances.instanceCount() : this.batch.indexCount();
+        this.chunkSizes[chunk] = size;
+        if (size == 0)
+        {
+            return;
+        }
+
+        if (this.chunkBuffers[chunk] == 0)
+        {
+            this.chunkBuffers[chunk] = glGenBuffers();
+        }
+
+        GlState.bindBuffer(GL_ARRAY_BUFFER, this.chunkBuffers[chunk]);
+        if (this.instanced)
+        {
+            glBufferData(GL_ARRAY_BUFFER, this.instances.instances(), GL_STATIC_DRAW);
+        }
+        else
+        {
+            long vertexBytes = (long) this.batch.vertexCount() * SpriteBatch.VERTEX_STRIDE;
+            long indexBytes = (long) this.batch.indexCount() * SpriteBatch.INDEX_STRIDE;
+
+            glBufferData(GL_ARRAY_BUFFER, vertexBytes + indexBytes, GL_STATIC_DRAW);
+            glBufferSubData(GL_ARRAY_BUFFER, 0, this.batch.vertices());
+            glBufferSubData(GL_ARRAY_BUFFER, vertexBytes, this.batch.indices());
+            this.chunkIndexOffsets[chunk] = vertexBytes;
+        }
+    }
+
+    private int findTextureSlot(Texture texture)
+    {
+        for (int i = 0; i < this.textureCount; i++)
+        {
+            if (this.textures[i] == texture)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void acquireTextureSlot(Texture texture)
+    {
+        int slot = findTextureSlot(texture);
+        if (slot < 0)
+        {
+            slot = 0;
+            while (slot < Renderer2d.TEXTURE_STACK_SIZE && this.textures[slot] != null)
+            {
+                slot++;
+            }
+
+            if (slot == Renderer2d.TEXTURE_STACK_SIZE)
+            {
+                throw new IllegalStateException("A tile layer can use at most " + Renderer2d.TEXTURE_STACK_SIZE + " textures at a time.");
+            }
+
+            this.textures[slot] = texture;
+            this.textureCount = Math.max(this.textureCount, slot + 1);
+        }
+
+        this.textureUses[slot]++;
+    }
+
+    private void releaseTextureSlot(Texture texture)
+    {
+        int slot = findTextureSlot(texture);
+        if (--this.textureUses[slot] > 0)
+        {
+            return;
+        }
+
+        this.textures[slot] = null;
+        while (this.textureCount > 0 && this.textures[this.textureCount - 1] == null)
+        {
+            this.textureCount--;
+        }
+    }
+
+    private int index(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= this.width || y >= this.height)
+        {
+            throw new IndexOutOfBoundsException("Tile " + x + ", " + y + " is outside the " + this.width + "x" + this.height + " layer.");
+        }
+
+        return y * this.width + x;
+    }
+}
@@ -1,7 +0,0 @@
-package net.james.game.util;
-
-@FunctionalInterface
-public interface BiConsumer<T, U>
-{
-    void accept(T t, U u);
-}
\ No newline at end of file
@@ -0,0 +1,7 @@
+package net.james.game.util;
+
+@FunctionalInterface
+public interface IntBoolObjConsumer<T>
+{
+    void accept(int i, boolean b, T t);
+}
\ No newline at end of file
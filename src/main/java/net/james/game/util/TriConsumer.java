@@ -1,7 +0,0 @@
-package net.james.game.util;
-
-@FunctionalInterface
-public interface TriConsumer<T, U, V>
-{
-    void accept(T t, U u, V v);
-}
\ No newline at end of file
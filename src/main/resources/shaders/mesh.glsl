@@ -0,0 +1,46 @@
+#version 150
+
+#ifdef VERTEX_SHADER
+
+// 24 bytes per vertex, see MeshCache
+in vec3 position;
+in vec2 texCoord;
+in vec3 normal;
+
+out vec2 vTexCoord;
+out vec3 vNormal;
+
+uniform mat4 projectionMatrix;
+uniform mat4 modelMatrix;
+
+void main()
+{
+    vTexCoord = texCoord;
+    // Only right for uniform scales, which is all models get
+    vNormal = mat3(modelMatrix) * normal;
+
+    gl_Position = projectionMatrix * modelMatrix * vec4(position, 1.0f);
+}
+
+#endif
+
+#ifdef FRAGMENT_SHADER
+
+in vec2 vTexCoord;
+in vec3 vNormal;
+
+out vec4 fragColor;
+
+uniform sampler2D albedo;
+uniform vec4 tint;
+uniform vec3 lightDirection;
+
+void main()
+{
+    float light = 0.25f + 0.75f * max(dot(normalize(vNormal), -lightDirection), 0.0f);
+    vec4 color = texture(albedo, vTexCoord) * tint;
+
+    fragColor = vec4(color.rgb * light, color.a);
+}
+
+#endif
@@ -1,29 +1,65 @@
 #version 150
 
-#if VERTEX_SHADER
+#pragma variants INSTANCED
 
-in vec4 position;
-in vec4 color;
-in vec2 texCoord;
+#ifdef VERTEX_SHADER
 
 out vec4 vColor;
-out vec4 vTexCoord;
+out vec2 vTexCoord;
 out float vTextureID;
 
 uniform mat4 projectionMatrix;
 
+#ifdef INSTANCED
+
+// One instance per sprite, drawn as a 4 vertex triangle strip
+in vec4 instanceRect;       // x, y, width, height
+in vec2 instanceTransform;  // depth, rotation in radians
+in vec4 instanceUV;         // u, v, width, height
+in vec4 instanceColor;
+in int instanceTexture;
+
+void main()
+{
+    // Strip order (0, 0), (1, 0), (0, 1), (1, 1)
+    vec2 corner = vec2(gl_VertexID & 1, gl_VertexID >> 1);
+
+    vec2 extent = instanceRect.zw;
+    vec2 local = (corner - 0.5f) * extent;
+    float s = sin(instanceTransform.y);
+    float c = cos(instanceTransform.y);
+    vec2 world = instanceRect.xy + 0.5f * extent + vec2(local.x * c - local.y * s, local.x * s + local.y * c);
+
+    vColor = instanceColor;
+    vTexCoord = instanceUV.xy + vec2(corner.x, 1.0f - corner.y) * instanceUV.zw;
+    vTextureID = float(instanceTexture);
+
+    gl_Position = projectionMatrix * vec4(world, instanceTransform.x, 1.0f);
+}
+
+#else
+
+// 24 bytes per vertex: float position and depth, fixed point uv, unorm8 color and a byte texture slot
+in vec3 position;
+in vec2 texCoord;
+in vec4 color;
+in int textureSlot;
+
 void main()
 {
     vColor = color;
-    vTexCoord = texCoord;
-    vTextureID = position.w;
+    // Matches SpriteBatch.UV_SCALE
+    vTexCoord = texCoord * (1.0f / 4096.0f);
+    vTextureID = float(textureSlot);
 
-    gl_Position = projectionMatrix * vec4(position.x, position.y, position.z, 1.0f);
+    gl_Position = projectionMatrix * vec4(position, 1.0f);
 }
 
 #endif
 
-#if FRAGMENT_SHADER
+#endif
+
+#ifdef FRAGMENT_SHADER
 
 in vec4 vColor;
 in vec2 vTexCoord;
@@ -42,7 +78,7 @@ void main()
 
     if(id < TEXTURE_STACK_SIZE)
     {
-        vec4 rgba = texture2D(textureStack[id], vTexCoord);
+        vec4 rgba = texture(textureStack[id], vTexCoord);
 
         if(isFontTexture[id] == 1)
         {